@@ -0,0 +1,112 @@
+package com.chin.ygodb;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+/**
+ * A streaming reader for the response of the Wikia Articles/List API, which looks like
+ * {"items": [{"id": 1, "title": "...", "url": "...", ...}, ...], "basepath": "...", "offset": "..."}
+ *
+ * The items are handed out one by one as they are read, so the whole response is never held in memory,
+ * neither as a string nor as a JSON tree.
+ *
+ * @author Chin
+ *
+ */
+public final class ArticleListReader {
+    private static final int TIMEOUT = 10000; // ms
+
+    /**
+     * Called for each item in the list, on the reading thread
+     */
+    public interface ItemHandler {
+        void onItem(String title, String url, String id);
+    }
+
+    private ArticleListReader() {}
+
+    /**
+     * Read the list straight off the network
+     * @return The offset to use to get the next page, or null if this is the last page
+     */
+    public static String read(String url, ItemHandler handler) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(TIMEOUT);
+        connection.setReadTimeout(TIMEOUT);
+        try {
+            if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP error " + connection.getResponseCode() + " fetching " + url);
+            }
+            return read(new InputStreamReader(new BufferedInputStream(connection.getInputStream(), 16384), "UTF-8"), handler);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Read the list from a reader, e.g. over a cached response
+     * @return The offset to use to get the next page, or null if this is the last page
+     */
+    public static String read(Reader in, ItemHandler handler) throws IOException {
+        JsonReader reader = new JsonReader(in);
+        try {
+            String offset = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("items")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        readItem(reader, handler);
+                    }
+                    reader.endArray();
+                }
+                else if (name.equals("offset") && reader.peek() != JsonToken.NULL) {
+                    offset = reader.nextString();
+                }
+                else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return offset;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void readItem(JsonReader reader, ItemHandler handler) throws IOException {
+        String title = null, url = null, id = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            }
+            else if (name.equals("title")) {
+                title = reader.nextString();
+            }
+            else if (name.equals("url")) {
+                url = reader.nextString();
+            }
+            else if (name.equals("id")) {
+                id = reader.nextString(); // a number, but we keep it as a string
+            }
+            else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (title != null && url != null) {
+            handler.onItem(title, url, id);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.chin.ygodb;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.json.JSONObject;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
+
+/**
+ * The list of the TCG booster packs, with their names and covers.
+ *
+ * The names and cover links are kept in our own database once fetched, so only the packs that are new to us are fetched.
+ * They are fetched through the Articles/Details API, which takes many articles at once, with a few requests in parallel
+ * on the network pool.
+ *
+ * @author Chin
+ *
+ */
+public class BoosterCatalog {
+    private static final String LIST_URL = "http://yugioh.wikia.com/api/v1/Articles/List?category=TCG_Booster_Packs&limit=5000&namespaces=0";
+    private static final String DETAILS_URL = "http://yugioh.wikia.com/api/v1/Articles/Details?abstract=0";
+
+    // how many articles to ask for in one request
+    private static final int BATCH_SIZE = 50;
+
+    // the size of the cover thumbnails, a booster pack is about 1.7 times as tall as it is wide
+    public static final int THUMBNAIL_WIDTH = 200;
+    public static final int THUMBNAIL_HEIGHT = 340;
+
+    Context context;
+
+    /**
+     * A booster pack
+     */
+    public static class Booster {
+        // the path of the article, e.g. "/wiki/Legend_of_Blue_Eyes_White_Dragon"
+        public final String link;
+        public final String id;
+
+        // null if not fetched yet, or if the fetch failed
+        public final String name;
+        public final String imageLink;
+
+        public Booster(String link, String id, String name, String imageLink) {
+            this.link = link;
+            this.id = id;
+            this.name = name;
+            this.imageLink = imageLink;
+        }
+    }
+
+    public BoosterCatalog(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Get all the booster packs in the order of the wiki's list, fetching the details of the ones we don't have yet.
+     * Should be called off the UI thread.
+     */
+    public List<Booster> load() throws Exception {
+        // the list of packs, as (link, id)
+        final ArrayList<String[]> links = new ArrayList<String[]>();
+        ArticleListReader.read(new StringReader(HttpDiskCache.getInstance(context).get(LIST_URL)), new ArticleListReader.ItemHandler() {
+            @Override
+            public void onItem(String title, String url, String id) {
+                links.add(new String[] {url, id});
+            }
+        });
+
+        HashMap<String, Booster> stored = loadStored();
+        ArrayList<String[]> missing = new ArrayList<String[]>();
+        for (String[] link : links) {
+            if (!stored.containsKey(link[0]) && link[1] != null) {
+                missing.add(link);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            Log.i("YGODB", "Fetching the details of " + missing.size() + " booster packs...");
+            List<Booster> fetched = fetchDetails(missing);
+            store(fetched);
+            for (Booster booster : fetched) {
+                stored.put(booster.link, booster);
+            }
+        }
+
+        ArrayList<Booster> boosters = new ArrayList<Booster>(links.size());
+        for (String[] link : links) {
+            Booster booster = stored.get(link[0]);
+            boosters.add(booster != null? booster : new Booster(link[0], link[1], null, null));
+        }
+        return boosters;
+    }
+
+    /**
+     * @return The packs in our database, by link
+     */
+    private HashMap<String, Booster> loadStored() {
+        HashMap<String, Booster> boosters = new HashMap<String, Booster>();
+        SQLiteDatabase db = YGOCacheDatabase.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.rawQuery("select link, id, name, image from booster", null);
+        try {
+            while (cursor.moveToNext()) {
+                Booster booster = new Booster(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3));
+                boosters.put(booster.link, booster);
+            }
+        } finally {
+            cursor.close();
+        }
+        return boosters;
+    }
+
+    /**
+     * Fetch the details of the packs in batches, a few batches at a time on the network pool. A batch that fails
+     * is skipped, its packs will be fetched again next time.
+     */
+    private List<Booster> fetchDetails(List<String[]> links) throws InterruptedException {
+        ArrayList<Callable<List<Booster>>> batches = new ArrayList<Callable<List<Booster>>>();
+        for (int start = 0; start < links.size(); start += BATCH_SIZE) {
+            final List<String[]> batch = links.subList(start, Math.min(start + BATCH_SIZE, links.size()));
+            batches.add(new Callable<List<Booster>>() {
+                @Override
+                public List<Booster> call() throws Exception {
+                    return fetchBatch(batch);
+                }
+            });
+        }
+
+        ArrayList<Booster> boosters = new ArrayList<Booster>(links.size());
+        for (Future<List<Booster>> future : TaskScheduler.invokeAll(Pool.NETWORK, Priority.VISIBLE, batches)) {
+            try {
+                boosters.addAll(future.get());
+            } catch (ExecutionException e) {
+                Log.w("YGODB", "Failed to fetch a batch of booster details");
+                e.getCause().printStackTrace();
+            }
+        }
+        return boosters;
+    }
+
+    private List<Booster> fetchBatch(List<String[]> batch) throws Exception {
+        StringBuilder ids = new StringBuilder();
+        for (String[] link : batch) {
+            ids.append(ids.length() == 0? "" : ",").append(link[1]);
+        }
+        String url = DETAILS_URL + "&width=" + THUMBNAIL_WIDTH + "&height=" + THUMBNAIL_HEIGHT + "&ids=" + ids;
+        JSONObject items = new JSONObject(HttpDiskCache.getInstance(context).get(url)).getJSONObject("items");
+
+        ArrayList<Booster> boosters = new ArrayList<Booster>(batch.size());
+        for (String[] link : batch) {
+            JSONObject item = items.optJSONObject(link[1]);
+            if (item == null) {
+                continue; // deleted since the list was made?
+            }
+            String image = item.isNull("thumbnail")? null : item.getString("thumbnail");
+            boosters.add(new Booster(link[0], link[1], item.getString("title"), image));
+        }
+        return boosters;
+    }
+
+    /**
+     * Save the packs, all in one transaction
+     */
+    private void store(List<Booster> boosters) {
+        if (boosters.isEmpty()) return;
+        SQLiteDatabase db = YGOCacheDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            ContentValues values = new ContentValues();
+            for (Booster booster : boosters) {
+                values.clear();
+                values.put("link", booster.link);
+                values.put("id", booster.id);
+                values.put("name", booster.name);
+                values.put("image", booster.imageLink);
+                db.insertWithOnConflict("booster", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package com.chin.ygodb;
+
+import java.util.List;
+
+import com.chin.ygodb.BoosterCatalog.Booster;
+import com.chin.ygodb2.R;
+import com.nostra13.universalimageloader.core.ImageLoader;
+
+import android.content.Context;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.AbsListView;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.TextView;
+
+/**
+ * The adapter for the booster grid. Cells are recycled as the grid scrolls, so only the covers of the packs on the
+ * screen are loaded and kept around, no matter how many packs there are.
+ *
+ * Set it as the grid's RecyclerListener too, so that the cover of a cell that scrolls away stops loading.
+ *
+ * @author Chin
+ *
+ */
+public class BoosterGridAdapter extends BaseAdapter implements AbsListView.RecyclerListener {
+    private final LayoutInflater inflater;
+    private final List<Booster> boosters;
+
+    // the grid has a fixed number of columns, which are stretched to fill its width
+    private final int columnCount;
+    private final int columnSpacing; // px
+
+    // the height of a cover, from the width of the columns once the grid has been measured. 0 until then
+    private int coverHeight = 0;
+
+    private static class ViewHolder {
+        ImageView image;
+        TextView name;
+    }
+
+    public BoosterGridAdapter(Context context, List<Booster> boosters) {
+        this.inflater = LayoutInflater.from(context);
+        this.boosters = boosters;
+        this.columnCount = context.getResources().getInteger(R.integer.booster_grid_columns);
+        this.columnSpacing = context.getResources().getDimensionPixelSize(R.dimen.booster_grid_spacing);
+    }
+
+    @Override
+    public int getCount() {
+        return boosters.size();
+    }
+
+    @Override
+    public Booster getItem(int position) {
+        return boosters.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        ViewHolder holder;
+        if (convertView == null) {
+            convertView = inflater.inflate(R.layout.item_booster, parent, false);
+            holder = new ViewHolder();
+            holder.image = (ImageView) convertView.findViewById(R.id.imageView_booster);
+            holder.name = (TextView) convertView.findViewById(R.id.textView_booster_name);
+            convertView.setTag(holder);
+        }
+        else {
+            holder = (ViewHolder) convertView.getTag();
+        }
+
+        // give the cover its final size up front, so that the cells don't jump around as the covers come in. A cell
+        // made before the grid was measured gets it when it is used again
+        int height = getCoverHeight(parent);
+        if (height > 0 && holder.image.getLayoutParams().height != height) {
+            holder.image.getLayoutParams().height = height;
+        }
+
+        Booster booster = boosters.get(position);
+        holder.name.setText(booster.name);
+        if (booster.imageLink != null) {
+            // this also cancels the load of the cover that was shown in this cell before
+            ImageLoader.getInstance().displayImage(booster.imageLink, holder.image);
+        }
+        else {
+            ImageLoader.getInstance().cancelDisplayTask(holder.image);
+            holder.image.setImageDrawable(null);
+        }
+        return convertView;
+    }
+
+    /**
+     * @return The height of a cover for the width of the columns of the grid, or 0 if the grid hasn't been measured yet
+     */
+    private int getCoverHeight(ViewGroup grid) {
+        if (coverHeight == 0) {
+            // the grid measures a first cell before it knows its own width, so fall back to the one it was measured at
+            int width = grid.getWidth() > 0? grid.getWidth() : grid.getMeasuredWidth();
+            int columnWidth = (width - grid.getPaddingLeft() - grid.getPaddingRight() - (columnCount - 1) * columnSpacing) / columnCount;
+            if (columnWidth <= 0) {
+                return 0;
+            }
+            coverHeight = columnWidth * BoosterCatalog.THUMBNAIL_HEIGHT / BoosterCatalog.THUMBNAIL_WIDTH;
+        }
+        return coverHeight;
+    }
+
+    @Override
+    public void onMovedToScrapHeap(View view) {
+        ViewHolder holder = (ViewHolder) view.getTag();
+        if (holder != null) {
+            ImageLoader.getInstance().cancelDisplayTask(holder.image);
+            holder.image.setImageDrawable(null);
+        }
+    }
+}
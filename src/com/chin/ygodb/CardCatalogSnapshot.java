@@ -0,0 +1,140 @@
+package com.chin.ygodb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * A compact on-disk snapshot of the online card catalog, i.e. the card names and their wiki urls and ids.
+ *
+ * The file is a flat binary list of (title, url, id) entries. Since the url of almost every card is just
+ * "/wiki/" followed by its title with underscores, the url is only stored when it can't be derived that way.
+ *
+ * @author Chin
+ *
+ */
+final class CardCatalogSnapshot {
+    private static final int MAGIC = 0x59474F43; // "YGOC"
+    private static final int VERSION = 1;
+
+    // when the catalog was last synced with the wiki
+    final long timestamp;
+
+    final List<String> titles;
+    final List<String[]> links; // {url, id}, same as the values in CardStore.cardLinkTable
+
+    private CardCatalogSnapshot(long timestamp, List<String> titles, List<String[]> links) {
+        this.timestamp = timestamp;
+        this.titles = titles;
+        this.links = links;
+    }
+
+    /**
+     * Read a snapshot from a file
+     * @return The snapshot, or null if there is none or it can't be read
+     */
+    static CardCatalogSnapshot read(File file) {
+        if (!file.exists()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 16384));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return null;
+                }
+                long timestamp = in.readLong();
+                int count = in.readInt();
+                List<String> titles = new ArrayList<String>(count);
+                List<String[]> links = new ArrayList<String[]>(count);
+                for (int i = 0; i < count; i++) {
+                    String title = in.readUTF();
+                    String url = in.readBoolean()? in.readUTF() : defaultUrl(title);
+                    String id = String.valueOf(in.readInt());
+                    titles.add(title);
+                    links.add(new String[] {url, id});
+                }
+                return new CardCatalogSnapshot(timestamp, titles, links);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w("YGODB", "Failed to read the card catalog snapshot");
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * Write the cards in the link table to a file, in the order of the given titles
+     */
+    static void write(File file, long timestamp, List<String> titles, Map<String, String[]> linkTable) {
+        // count first, since not every title in the list is necessarily in the link table
+        ArrayList<String> entries = new ArrayList<String>(linkTable.size());
+        for (String title : titles) {
+            if (linkTable.containsKey(title)) {
+                entries.add(title);
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 16384));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(timestamp);
+                out.writeInt(entries.size());
+                for (String title : entries) {
+                    String[] link = linkTable.get(title);
+                    out.writeUTF(title);
+                    boolean hasCustomUrl = !link[0].equals(defaultUrl(title));
+                    out.writeBoolean(hasCustomUrl);
+                    if (hasCustomUrl) {
+                        out.writeUTF(link[0]);
+                    }
+                    out.writeInt(parseId(link[1]));
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+            }
+        } catch (IOException e) {
+            Log.w("YGODB", "Failed to write the card catalog snapshot");
+            e.printStackTrace();
+            tmp.delete();
+        }
+    }
+
+    /**
+     * The url a card's wiki page usually has, e.g. "/wiki/Dark_Magician". The title is percent-encoded, except for
+     * the / and : that MediaWiki keeps as they are, so that a ?, # or % in a name doesn't break the url.
+     */
+    static String defaultUrl(String title) {
+        try {
+            return "/wiki/" + URLEncoder.encode(title.replace(' ', '_'), "UTF-8").replace("%2F", "/").replace("%3A", ":");
+        } catch (UnsupportedEncodingException e) {
+            return "/wiki/" + title.replace(' ', '_'); // UTF-8 is always there
+        }
+    }
+
+    private static int parseId(String id) {
+        try {
+            return Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.chin.ygodb;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * A search index over the card names, so that we don't have to run a regex over every card on each keystroke.
+ *
+ * The names are normalized (lower case, no accents or punctuation) and indexed by their trigrams. A query is
+ * looked up through its rarest trigram, then the few candidates are checked and ranked: exact matches first,
+ * then names starting with the query, whole word matches, word prefix matches and finally any other match.
+ *
+ * The last search is remembered, so when the user keeps typing (e.g. "blue" then "blue-e") only the names
+ * that matched the previous query are checked again.
+ *
+ * @author Chin
+ *
+ */
+public class CardNameIndex {
+    private static final int RANK_EXACT       = 0;
+    private static final int RANK_PREFIX      = 1;
+    private static final int RANK_WHOLE_WORD  = 2;
+    private static final int RANK_WORD_PREFIX = 3;
+    private static final int RANK_SUBSTRING   = 4;
+    private static final int RANK_COUNT       = 5;
+
+    private final ArrayList<String> names = new ArrayList<String>(8192);
+    private final ArrayList<String> normalizedNames = new ArrayList<String>(8192);
+
+    // trigram -> ids of the names that contain it, in increasing order
+    private final HashMap<Long, IntList> trigrams = new HashMap<Long, IntList>(16384);
+
+    // the normalized query of the last search and the ids of the names it matched, in increasing order
+    private String lastQuery = null;
+    private IntList lastMatches = null;
+
+    // how many names to check between two checks for cancellation
+    private static final int CANCELLATION_CHECK_INTERVAL = 512;
+
+    /**
+     * Lets a search be abandoned halfway, e.g. when a newer query comes in
+     */
+    public interface Cancellation {
+        boolean isCancelled();
+    }
+
+    /**
+     * A growable list of ints, to avoid boxing every posting
+     */
+    private static class IntList {
+        int[] values = new int[4];
+        int size = 0;
+
+        void add(int value) {
+            if (size > 0 && values[size - 1] == value) return; // same name having the same trigram twice
+            if (size == values.length) {
+                int[] newValues = new int[size * 2];
+                System.arraycopy(values, 0, newValues, 0, size);
+                values = newValues;
+            }
+            values[size++] = value;
+        }
+    }
+
+    public synchronized void addAll(Collection<String> newNames) {
+        for (String name : newNames) {
+            add(name);
+        }
+
+        // the new names may match the last query too
+        lastQuery = null;
+        lastMatches = null;
+    }
+
+    private void add(String name) {
+        int id = names.size();
+        String normalized = normalize(name);
+        names.add(name);
+        normalizedNames.add(normalized);
+
+        for (int i = 0; i + 3 <= normalized.length(); i++) {
+            Long key = trigramKey(normalized, i);
+            IntList postings = trigrams.get(key);
+            if (postings == null) {
+                postings = new IntList();
+                trigrams.put(key, postings);
+            }
+            postings.add(id);
+        }
+    }
+
+    public synchronized int size() {
+        return names.size();
+    }
+
+    public synchronized List<String> getAllNames() {
+        return new ArrayList<String>(names);
+    }
+
+    /**
+     * Search for the names that contain the query, best matches first
+     */
+    public List<String> search(String query) {
+        return search(query, null);
+    }
+
+    /**
+     * Search for the names that contain the query, best matches first
+     * @param cancellation Checked every now and then during the search, may be null
+     * @return The matched names, or null if the search was cancelled
+     */
+    public synchronized List<String> search(String query, Cancellation cancellation) {
+        String q = normalize(query);
+        if (q.length() == 0) {
+            lastQuery = null;
+            lastMatches = null;
+            return getAllNames();
+        }
+
+        // the candidates to check, in increasing order of id. Null means all the names
+        int[] candidates = null;
+        int candidateCount = names.size();
+
+        // a query that contains the last one can only match names that the last one matched
+        if (lastQuery != null && q.contains(lastQuery)) {
+            candidates = lastMatches.values;
+            candidateCount = lastMatches.size;
+        }
+
+        // only go through the names that have the rarest trigram of the query, if that's fewer
+        for (int i = 0; i + 3 <= q.length(); i++) {
+            IntList postings = trigrams.get(trigramKey(q, i));
+            if (postings == null) {
+                candidates = new int[0]; // no name has this trigram, so nothing can match
+                candidateCount = 0;
+                break;
+            }
+            if (postings.size < candidateCount) {
+                candidates = postings.values;
+                candidateCount = postings.size;
+            }
+        }
+
+        IntList[] ranked = new IntList[RANK_COUNT];
+        for (int i = 0; i < RANK_COUNT; i++) {
+            ranked[i] = new IntList();
+        }
+        IntList matches = new IntList();
+        for (int i = 0; i < candidateCount; i++) {
+            if (cancellation != null && i % CANCELLATION_CHECK_INTERVAL == 0 && cancellation.isCancelled()) {
+                return null;
+            }
+
+            int id = candidates == null? i : candidates[i];
+            int rank = rank(normalizedNames.get(id), q);
+            if (rank >= 0) {
+                ranked[rank].add(id);
+                matches.add(id);
+            }
+        }
+        lastQuery = q;
+        lastMatches = matches;
+
+        ArrayList<String> results = new ArrayList<String>(matches.size);
+        for (int i = 0; i < RANK_COUNT; i++) {
+            for (int j = 0; j < ranked[i].size; j++) {
+                results.add(names.get(ranked[i].values[j]));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * @return How well the name matches the query, or -1 if it doesn't
+     */
+    private static int rank(String name, String q) {
+        if (name.equals(q)) {
+            return RANK_EXACT;
+        }
+
+        int best = -1;
+        for (int i = name.indexOf(q); i >= 0; i = name.indexOf(q, i + 1)) {
+            int rank;
+            boolean startsWord = i == 0 || name.charAt(i - 1) == ' ';
+            boolean endsWord = i + q.length() == name.length() || name.charAt(i + q.length()) == ' ';
+            if (i == 0) {
+                rank = RANK_PREFIX;
+            }
+            else if (startsWord && endsWord) {
+                rank = RANK_WHOLE_WORD;
+            }
+            else if (startsWord) {
+                rank = RANK_WORD_PREFIX;
+            }
+            else {
+                rank = RANK_SUBSTRING;
+            }
+
+            if (best < 0 || rank < best) {
+                best = rank;
+            }
+            if (best == RANK_PREFIX) {
+                break;
+            }
+        }
+        return best;
+    }
+
+    private static Long trigramKey(String s, int i) {
+        return ((long) s.charAt(i) << 32) | ((long) s.charAt(i + 1) << 16) | s.charAt(i + 2);
+    }
+
+    /**
+     * Normalize a name or a query: lower case, without accents, with words separated by a single space.
+     * Apostrophes and periods are dropped so that e.g. "dragons" finds "Dragon's".
+     */
+    static String normalize(String s) {
+        String decomposed = Normalizer.normalize(s, Normalizer.Form.NFD);
+        StringBuilder sb = new StringBuilder(decomposed.length());
+        boolean lastIsSpace = true;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(Character.toLowerCase(c));
+                lastIsSpace = false;
+            }
+            else if (c == '\'' || c == '\u2019' || c == '.' || Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            else if (!lastIsSpace) {
+                sb.append(' ');
+                lastIsSpace = true;
+            }
+        }
+        if (lastIsSpace && sb.length() > 0) {
+            sb.setLength(sb.length() - 1);
+        }
+        return sb.toString();
+    }
+}
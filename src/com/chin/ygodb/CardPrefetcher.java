@@ -0,0 +1,175 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.chin.common.Util;
+import com.chin.ygodb.asyncTask.AddCardInfoTask;
+import com.nostra13.universalimageloader.core.ImageLoader;
+import com.nostra13.universalimageloader.core.assist.ImageSize;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.database.DataSetObserver;
+import android.net.ConnectivityManager;
+import android.os.Build;
+import android.os.Handler;
+import android.widget.AbsListView;
+import android.widget.ListAdapter;
+
+/**
+ * Fetches the cards at the top of the search list before they are tapped, so that their detail page shows up right away.
+ *
+ * Once the list has stopped scrolling and the search result is small enough that the user is likely to tap one of
+ * the first few cards, the wiki page, the parsed record and the scaled image of these cards are fetched in the
+ * background at the prefetch priority, after any other network work. Any scrolling stops the prefetching, but for
+ * the pages already queued, which are cheap next to the images. To go easy on the user's data plan, nothing is
+ * prefetched on a metered network, and only so many cards are prefetched per run of the app.
+ *
+ * @author Chin
+ *
+ */
+public class CardPrefetcher implements AbsListView.OnScrollListener {
+    // only prefetch when the search result has at most this many cards
+    private static final int MAX_RESULT_SIZE = 20;
+
+    // how many cards from the top of the visible range to prefetch
+    private static final int PREFETCH_COUNT = 3;
+
+    // how many cards can be prefetched per run of the app. A card is about 100 KB of page and image
+    private static final int MAX_PREFETCHES = 50;
+
+    // wait for the list to settle for this long before prefetching
+    private static final long SETTLE_DELAY = 500; // ms
+
+    private static final AtomicInteger prefetchCount = new AtomicInteger();
+
+    private final Context context;
+    private final ListAdapter adapter;
+    private final Handler handler = new Handler();
+
+    // a new search result, see if it's worth prefetching
+    private final DataSetObserver observer = new DataSetObserver() {
+        @Override
+        public void onChanged() {
+            schedule();
+        }
+    };
+
+    // incremented on every scroll, so that a prefetch in progress can tell it should stop
+    private final AtomicInteger generation = new AtomicInteger();
+    private int firstVisibleItem = 0;
+    private int visibleItemCount = 0;
+    private int scrollState = SCROLL_STATE_IDLE;
+
+    private final Runnable prefetchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            prefetchVisible();
+        }
+    };
+
+    public CardPrefetcher(Context context, ListAdapter adapter) {
+        this.context = context.getApplicationContext();
+        this.adapter = adapter;
+        adapter.registerDataSetObserver(observer);
+    }
+
+    /**
+     * Stop prefetching for good, e.g. when the list goes away. Must be called on the UI thread.
+     */
+    public void detach() {
+        adapter.unregisterDataSetObserver(observer);
+        cancel();
+    }
+
+    @Override
+    public void onScrollStateChanged(AbsListView view, int scrollState) {
+        this.scrollState = scrollState;
+        if (scrollState == SCROLL_STATE_IDLE) {
+            schedule();
+        }
+        else {
+            cancel();
+        }
+    }
+
+    @Override
+    public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+        this.firstVisibleItem = firstVisibleItem;
+        this.visibleItemCount = visibleItemCount;
+    }
+
+    /**
+     * Stop any prefetch pending or in progress. Must be called on the UI thread.
+     */
+    public void cancel() {
+        generation.incrementAndGet();
+        handler.removeCallbacks(prefetchRunnable);
+    }
+
+    private void schedule() {
+        cancel();
+        handler.postDelayed(prefetchRunnable, SETTLE_DELAY);
+    }
+
+    private void prefetchVisible() {
+        if (scrollState != SCROLL_STATE_IDLE || adapter.getCount() == 0 || adapter.getCount() > MAX_RESULT_SIZE) {
+            return;
+        }
+        if (prefetchCount.get() >= MAX_PREFETCHES || !CardStore.getInstance(context).isOnline() || isMetered()) {
+            return;
+        }
+
+        List<String> cardNames = new ArrayList<String>();
+        int count = Math.max(1, Math.min(PREFETCH_COUNT, visibleItemCount));
+        for (int i = firstVisibleItem; i < firstVisibleItem + count && i < adapter.getCount(); i++) {
+            cardNames.add((String) adapter.getItem(i));
+        }
+
+        int myGeneration = generation.get();
+        int imageWidth = AddCardInfoTask.getImageWidth(context);
+        for (String cardName : cardNames) {
+            prefetch(cardName, imageWidth, myGeneration);
+        }
+    }
+
+    /**
+     * Get the record of a card, which goes through the page and record caches, then its image. The page is fetched
+     * on the network pool, at the prefetch priority, and the record is handed back on the UI thread.
+     * @param myGeneration The generation when the prefetch was started, the image is not fetched if it has changed since
+     */
+    private void prefetch(String cardName, final int imageWidth, final int myGeneration) {
+        if (CardStore.isCardRecordCached(cardName)) {
+            return; // already done, and doesn't count toward the budget
+        }
+        if (prefetchCount.incrementAndGet() > MAX_PREFETCHES) {
+            return;
+        }
+
+        // null if the page couldn't be fetched, the failure is logged by the router
+        CardStore cardStore = CardStore.getInstance(context);
+        cardStore.getCardRecord(cardName, TaskScheduler.Priority.PREFETCH, new TaskScheduler.Callback<CardRecord>() {
+            @Override
+            public void onResult(CardRecord record) {
+                if (record == null || record.imageLink == null || generation.get() != myGeneration) {
+                    return; // scrolled or searched again since
+                }
+
+                // already on the UI thread, as the image loader needs. It caches the image on disk and in memory
+                ImageLoader.getInstance().loadImage(Util.getScaledWikiaImageLink(record.imageLink, imageWidth),
+                        new ImageSize(imageWidth, (int) (imageWidth * AddCardInfoTask.IMAGE_RATIO)), null);
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private boolean isMetered() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            return false; // can't tell
+        }
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        return cm.isActiveNetworkMetered();
+    }
+}
@@ -0,0 +1,60 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.chin.ygodb.CardStore.Pair;
+
+/**
+ * An immutable, compact record of everything we show from a card's wiki page.
+ *
+ * The page is parsed only once into this record, after which its DOM can be thrown away.
+ *
+ * @author Chin
+ *
+ */
+public final class CardRecord {
+    // the card lore, as cleaned HTML
+    public final String lore;
+
+    // the rows in the info section of the card table, e.g. ("Attribute", "LIGHT")
+    public final List<Pair> infos;
+
+    // the TCG/OCG banlist statuses, e.g. ("TCG Advanced", "Unlimited")
+    public final List<Pair> statuses;
+
+    // the link to the full-size card image
+    public final String imageLink;
+
+    // the revision id of the wiki page this record was parsed from, or 0 if unknown
+    public final long revision;
+
+    public CardRecord(String lore, List<Pair> infos, List<Pair> statuses, String imageLink, long revision) {
+        this.lore = lore;
+        this.infos = Collections.unmodifiableList(new ArrayList<Pair>(infos));
+        this.statuses = Collections.unmodifiableList(new ArrayList<Pair>(statuses));
+        this.imageLink = imageLink;
+        this.revision = revision;
+    }
+
+    /**
+     * Estimate how many bytes this record takes in memory. Used to size the record cache.
+     */
+    int estimateSize() {
+        int chars = length(lore) + length(imageLink);
+        for (Pair pair : infos) {
+            chars += length(pair.key) + length(pair.value);
+        }
+        for (Pair pair : statuses) {
+            chars += length(pair.key) + length(pair.value);
+        }
+
+        // 2 bytes per char, plus some overhead for each of the objects
+        return chars * 2 + (infos.size() + statuses.size() + 4) * 64;
+    }
+
+    private static int length(String s) {
+        return s == null? 0 : s.length();
+    }
+}
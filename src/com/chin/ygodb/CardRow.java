@@ -0,0 +1,92 @@
+package com.chin.ygodb;
+
+import android.database.Cursor;
+
+/**
+ * A row of the card table, read with a single query. Everything shown for a card offline (lore, info, statuses,
+ * rulings, tips and trivia) comes from the same row, so opening a card only looks it up once.
+ *
+ * The columns are always selected in the order of COLUMNS, so their indices are known up front and we never
+ * have to call getColumnIndex().
+ *
+ * @author Chin
+ *
+ */
+public final class CardRow {
+    static final String[] COLUMNS = new String[] {"lore", "attribute", "types", "type", "property", "level", "rank",
+        "pendulumScale", "atkdef", "cardnum", "passcode", "limitText", "ritualSpell", "ritualMonster", "fusionMaterials",
+        "synchroMaterial", "materials", "summonedBy", "effectTypes", "ocgStatus", "tcgAdvStatus", "tcgTrnStatus",
+        "ruling", "tips", "trivia"};
+
+    static final int LORE   = indexOf("lore");
+    static final int RULING = indexOf("ruling");
+    static final int TIPS   = indexOf("tips");
+    static final int TRIVIA = indexOf("trivia");
+
+    // order of the columns here is important, to make it persistent between online vs offline
+    static final int[] INFO_COLUMNS = indicesOf("attribute", "types", "type", "property", "level", "rank", "pendulumScale",
+        "atkdef", "cardnum", "passcode", "limitText", "ritualSpell", "ritualMonster", "fusionMaterials",
+        "synchroMaterial", "materials", "summonedBy", "effectTypes");
+    static final int[] STATUS_COLUMNS = indicesOf("ocgStatus", "tcgAdvStatus", "tcgTrnStatus");
+
+    private static final String QUERY;
+    static {
+        StringBuilder sb = new StringBuilder("select ");
+        for (int i = 0; i < COLUMNS.length; i++) {
+            sb.append(i == 0? "" : ", ").append(COLUMNS[i]);
+        }
+        QUERY = sb.append(" from card where name = ? limit 1").toString();
+    }
+
+    public final String name;
+    private final String[] values;
+
+    private CardRow(String name, String[] values) {
+        this.name = name;
+        this.values = values;
+    }
+
+    /**
+     * Read the row of a card
+     * @return The row, or null if the card is not in the database
+     */
+    static CardRow query(DatabaseQuerier dbq, String cardName) {
+        Cursor cursor = dbq.query(QUERY, new String[] {cardName});
+        try {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            String[] values = new String[COLUMNS.length];
+            for (int i = 0; i < COLUMNS.length; i++) {
+                String value = cursor.getString(i);
+                values[i] = value == null? "" : value;
+            }
+            return new CardRow(cardName, values);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param column One of the indices above, e.g. LORE or an element of INFO_COLUMNS
+     * @return The value of the column, never null
+     */
+    public String get(int column) {
+        return values[column];
+    }
+
+    private static int indexOf(String column) {
+        for (int i = 0; i < COLUMNS.length; i++) {
+            if (COLUMNS[i].equals(column)) return i;
+        }
+        throw new IllegalArgumentException("Unknown column: " + column);
+    }
+
+    private static int[] indicesOf(String... columns) {
+        int[] indices = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indices[i] = indexOf(columns[i]);
+        }
+        return indices;
+    }
+}
@@ -0,0 +1,241 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import android.content.Context;
+import android.os.Handler;
+import android.util.Log;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.TextView;
+
+/**
+ * The adapter for the card search list. Searching is done through a CardNameIndex.
+ *
+ * A query that starts with a slash, e.g. "/^blue.*dragon$", is taken as a regex and matched against every card name.
+ *
+ * Queries coming through search() are debounced, and a search still running for a query that has since been
+ * replaced is abandoned, so fast typing never queues up stale searches.
+ *
+ * @author Chin
+ *
+ */
+public class CardSearchAdapter extends BaseAdapter implements Filterable {
+    public static final String REGEX_PREFIX = "/";
+
+    // wait for the user to stop typing for this long before searching
+    private static final long DEBOUNCE_DELAY = 150; // ms
+
+    // a regex search taking longer than this is stopped, e.g. for a regex with catastrophic backtracking
+    private static final long REGEX_TIME_LIMIT = 300; // ms
+
+    private final LayoutInflater inflater;
+    private final int resource;
+    private final CardNameIndex index = new CardNameIndex();
+
+    // the cards currently shown, i.e. the result of the last search
+    private List<String> shownCards = new ArrayList<String>();
+    private CharSequence query = "";
+    private Filter filter;
+
+    // incremented for every new query, so that a search can tell it has been replaced by a newer one
+    private final AtomicInteger generation = new AtomicInteger();
+    private final Handler handler = new Handler();
+    private Runnable pendingSearch = null;
+
+    public CardSearchAdapter(Context context, int resource) {
+        this.inflater = LayoutInflater.from(context);
+        this.resource = resource;
+    }
+
+    /**
+     * Search for a query once the user stops typing. Must be called on the UI thread.
+     */
+    public void search(final CharSequence newQuery) {
+        generation.incrementAndGet(); // any search still running is now stale
+        if (pendingSearch != null) {
+            handler.removeCallbacks(pendingSearch);
+        }
+        pendingSearch = new Runnable() {
+            @Override
+            public void run() {
+                pendingSearch = null;
+                getFilter().filter(newQuery);
+            }
+        };
+        handler.postDelayed(pendingSearch, DEBOUNCE_DELAY);
+    }
+
+    /**
+     * Add cards to the list. Must be called on the UI thread.
+     */
+    public void addCards(Collection<String> cards) {
+        index.addAll(cards);
+        if (query.length() == 0) {
+            shownCards = index.getAllNames();
+            notifyDataSetChanged();
+        }
+        else {
+            getFilter().filter(query); // so that the new cards show up in the current result if they match
+        }
+    }
+
+    /**
+     * @return The number of cards in the list, regardless of the current search
+     */
+    public int getCardCount() {
+        return index.size();
+    }
+
+    @Override
+    public int getCount() {
+        return shownCards.size();
+    }
+
+    @Override
+    public String getItem(int position) {
+        return shownCards.get(position);
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return position;
+    }
+
+    @Override
+    public View getView(int position, View convertView, ViewGroup parent) {
+        TextView view = (TextView) (convertView != null? convertView : inflater.inflate(resource, parent, false));
+        view.setText(shownCards.get(position));
+        return view;
+    }
+
+    @Override
+    public Filter getFilter() {
+        if (filter == null) {
+            filter = new CardFilter();
+        }
+        return filter;
+    }
+
+    /**
+     * Match a regex against every card name, as a fallback for when the index is not enough
+     * @return The matched names, or null if the search was cancelled
+     */
+    private List<String> searchRegex(String regex, CardNameIndex.Cancellation cancellation) {
+        ArrayList<String> results = new ArrayList<String>();
+        Pattern pattern;
+        try {
+            pattern = Pattern.compile(regex, Pattern.CASE_INSENSITIVE);
+        } catch (PatternSyntaxException e) {
+            return results; // probably an incomplete regex as the user is typing
+        }
+
+        long deadline = System.currentTimeMillis() + REGEX_TIME_LIMIT;
+        try {
+            for (String name : index.getAllNames()) {
+                if (cancellation.isCancelled()) {
+                    return null;
+                }
+                if (pattern.matcher(new GuardedCharSequence(name, deadline)).find()) {
+                    results.add(name);
+                }
+            }
+        } catch (RegexTimeoutException e) {
+            Log.w("YGODB", "Regex search for " + regex + " took too long, stopped it");
+        }
+        return results;
+    }
+
+    /**
+     * Thrown by GuardedCharSequence when a regex has been running for too long
+     */
+    private static class RegexTimeoutException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A CharSequence that stops the regex reading it once a deadline is passed. A regex can backtrack for a very long time,
+     * but it can't do that without reading its input, so this is where we can stop it.
+     */
+    private static class GuardedCharSequence implements CharSequence {
+        private final CharSequence inner;
+        private final long deadline;
+        private int reads = 0;
+
+        GuardedCharSequence(CharSequence inner, long deadline) {
+            this.inner = inner;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public char charAt(int index) {
+            // checking the clock on every read would be too slow
+            if (++reads % 1024 == 0 && System.currentTimeMillis() > deadline) {
+                throw new RegexTimeoutException();
+            }
+            return inner.charAt(index);
+        }
+
+        @Override
+        public int length() {
+            return inner.length();
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new GuardedCharSequence(inner.subSequence(start, end), deadline);
+        }
+
+        @Override
+        public String toString() {
+            return inner.toString();
+        }
+    }
+
+    private class CardFilter extends Filter {
+        @Override
+        protected FilterResults performFiltering(CharSequence constraint) {
+            final int myGeneration = generation.get();
+            CardNameIndex.Cancellation cancellation = new CardNameIndex.Cancellation() {
+                @Override
+                public boolean isCancelled() {
+                    return generation.get() != myGeneration;
+                }
+            };
+
+            String q = constraint == null? "" : constraint.toString();
+            List<String> results;
+            if (q.startsWith(REGEX_PREFIX)) {
+                results = searchRegex(q.substring(REGEX_PREFIX.length()), cancellation);
+            }
+            else {
+                results = index.search(q, cancellation);
+            }
+
+            FilterResults filterResults = new FilterResults();
+            filterResults.values = results;
+            filterResults.count = results == null? 0 : results.size();
+            return filterResults;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void publishResults(CharSequence constraint, FilterResults results) {
+            if (results.values == null) {
+                return; // cancelled, a newer search is on its way
+            }
+            query = constraint == null? "" : constraint.toString();
+            shownCards = (List<String>) results.values;
+            notifyDataSetChanged();
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.chin.ygodb.BoosterCatalog.Booster;
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
+
+/**
+ * An index of which sets each card was printed in, so that a card's print history is a single query.
+ *
+ * It is built from the card lists on the booster pages, each page being read only once. The revision of each page
+ * read is kept, and update() only reads again the pages that have changed since, which it finds out with a few
+ * batched API calls. Each changed page is then read in a task of its own at the prefetch priority, so that the
+ * network pool can run anything more urgent in between. A page is read through the API, which gives the parsed
+ * content without the skin of the wiki around it, along with the id of the revision it comes from. The pages are not
+ * kept in the HTTP cache: each one is only read once per revision, and hundreds of them would push everything else
+ * out of the cache. The sets that are no longer in the booster list are taken out of the index.
+ *
+ * @author Chin
+ *
+ */
+public class CardSetIndex {
+    // how many page ids to ask the revisions of in one API call. 50 is the most MediaWiki allows
+    private static final int REVISION_BATCH_SIZE = 50;
+
+    // how many pages to read in one update, so that the first one doesn't take forever. The rest is read next time
+    private static final int MAX_PAGES_PER_UPDATE = 100;
+
+    // only one update at a time looks for the changed pages
+    private static final Object updateLock = new Object();
+
+    // the links of the pages queued or being read, so that an update doesn't queue them again
+    private static final Set<String> pagesInFlight = new HashSet<String>();
+
+    Context context;
+
+    /**
+     * A printing of a card in a set
+     */
+    public static class Printing {
+        public final String setName;
+        public final String number; // e.g. "LOB-001", may be empty
+        public final String rarity; // e.g. "Ultra Rare", may be empty
+
+        public Printing(String setName, String number, String rarity) {
+            this.setName = setName;
+            this.number = number;
+            this.rarity = rarity;
+        }
+    }
+
+    public CardSetIndex(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Get the sets a card was printed in, as far as the index knows
+     */
+    public List<Printing> getPrintings(String cardName) {
+        ArrayList<Printing> printings = new ArrayList<Printing>();
+        SQLiteDatabase db = YGOCacheDatabase.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.rawQuery("select b.name, s.number, s.rarity from card_set s join booster b on b.link = s.set_link "
+                                  + "where s.card = ? order by s.number", new String[] {cardName});
+        try {
+            while (cursor.moveToNext()) {
+                printings.add(new Printing(cursor.getString(0), cursor.getString(1), cursor.getString(2)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return printings;
+    }
+
+    /**
+     * Read the card lists of the sets that are new or have changed since they were last read. Doesn't wait for
+     * anything: the revisions are checked, then each changed page is read, in tasks at the prefetch priority.
+     */
+    public void update(final List<Booster> boosters) {
+        TaskScheduler.getExecutor(Pool.NETWORK, Priority.PREFETCH).execute(new Runnable() {
+            @Override
+            public void run() {
+                queueChangedPages(boosters);
+            }
+        });
+    }
+
+    /**
+     * Find the sets that are new or have changed, and queue the reading of their pages
+     */
+    private void queueChangedPages(List<Booster> boosters) {
+        synchronized (updateLock) {
+            try {
+                HashMap<String, Long> indexedRevisions = getIndexedRevisions();
+                removeMissingSets(boosters, indexedRevisions.keySet());
+                HashMap<String, Long> currentRevisions = getCurrentRevisions(boosters);
+
+                int pagesQueued = 0;
+                for (final Booster booster : boosters) {
+                    Long current = currentRevisions.get(booster.id);
+                    Long indexed = indexedRevisions.get(booster.link);
+                    if (current == null || current.equals(indexed)) {
+                        continue;
+                    }
+                    if (pagesQueued >= MAX_PAGES_PER_UPDATE) {
+                        Log.i("YGODB", "Queued " + MAX_PAGES_PER_UPDATE + " card lists, the rest will be read next time");
+                        break;
+                    }
+                    synchronized (pagesInFlight) {
+                        if (!pagesInFlight.add(booster.link)) {
+                            continue; // queued by an earlier update, not read yet
+                        }
+                    }
+
+                    pagesQueued++;
+                    TaskScheduler.getExecutor(Pool.NETWORK, Priority.PREFETCH).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                readPage(booster);
+                            } catch (Exception e) {
+                                Log.w("YGODB", "Failed to read the card list of " + booster.link);
+                            } finally {
+                                synchronized (pagesInFlight) {
+                                    pagesInFlight.remove(booster.link);
+                                }
+                            }
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                Log.w("YGODB", "Failed to update the card set index");
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Read the card list of a set from the parsed content of its page, and store it with the revision it comes from
+     */
+    private void readPage(Booster booster) throws Exception {
+        String url = "http://yugioh.wikia.com/api.php?action=query&prop=revisions&rvprop=ids%7Ccontent&rvparse&format=json"
+                + "&pageids=" + booster.id;
+        JSONObject page = new JSONObject(Jsoup.connect(url).ignoreContentType(true).execute().body())
+                .getJSONObject("query").getJSONObject("pages").getJSONObject(booster.id);
+        JSONArray revisions = page.optJSONArray("revisions");
+        if (revisions == null || revisions.length() == 0) {
+            return; // deleted in between?
+        }
+
+        // the revision of the content we actually read, which may be newer than the one we asked about
+        JSONObject revision = revisions.getJSONObject(0);
+        final String html = revision.getString("*");
+        List<String[]> printings = TaskScheduler.runAndWait(Pool.PARSE, Priority.PREFETCH, new Callable<List<String[]>>() {
+            @Override
+            public List<String[]> call() {
+                return parseCardList(Jsoup.parseBodyFragment(html));
+            }
+        });
+        store(booster.link, revision.getLong("revid"), printings);
+    }
+
+    /**
+     * @return The revision of each set page that was read, by link
+     */
+    private HashMap<String, Long> getIndexedRevisions() {
+        HashMap<String, Long> revisions = new HashMap<String, Long>();
+        SQLiteDatabase db = YGOCacheDatabase.getInstance(context).getReadableDatabase();
+        Cursor cursor = db.rawQuery("select set_link, revision from card_set_source", null);
+        try {
+            while (cursor.moveToNext()) {
+                revisions.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return revisions;
+    }
+
+    /**
+     * Take the sets that are no longer in the booster list out of the index, all in one transaction
+     * @param indexedLinks The links of the sets in the index
+     */
+    private void removeMissingSets(List<Booster> boosters, Set<String> indexedLinks) {
+        if (boosters.isEmpty()) {
+            return; // more likely a list that failed to load than no boosters at all
+        }
+
+        HashSet<String> links = new HashSet<String>();
+        for (Booster booster : boosters) {
+            links.add(booster.link);
+        }
+
+        SQLiteDatabase db = YGOCacheDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (String link : indexedLinks) {
+                if (!links.contains(link)) {
+                    db.delete("card_set", "set_link = ?", new String[] {link});
+                    db.delete("card_set_source", "set_link = ?", new String[] {link});
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return The current revision of each set page on the wiki, by article id
+     */
+    private HashMap<String, Long> getCurrentRevisions(List<Booster> boosters) throws Exception {
+        HashMap<String, Long> revisions = new HashMap<String, Long>();
+        for (int start = 0; start < boosters.size(); start += REVISION_BATCH_SIZE) {
+            StringBuilder ids = new StringBuilder();
+            for (Booster booster : boosters.subList(start, Math.min(start + REVISION_BATCH_SIZE, boosters.size()))) {
+                if (booster.id != null) {
+                    ids.append(ids.length() == 0? "" : "%7C").append(booster.id);
+                }
+            }
+            if (ids.length() == 0) continue;
+
+            String url = "http://yugioh.wikia.com/api.php?action=query&prop=revisions&rvprop=ids&format=json&pageids=" + ids;
+            JSONObject pages = new JSONObject(HttpDiskCache.getInstance(context).get(url)).getJSONObject("query").getJSONObject("pages");
+            JSONArray names = pages.names();
+            for (int i = 0; names != null && i < names.length(); i++) {
+                JSONArray pageRevisions = pages.getJSONObject(names.getString(i)).optJSONArray("revisions");
+                if (pageRevisions != null && pageRevisions.length() > 0) {
+                    revisions.put(names.getString(i), pageRevisions.getJSONObject(0).getLong("revid"));
+                }
+            }
+        }
+        return revisions;
+    }
+
+    /**
+     * Read the card list tables of a set page, i.e. the tables with a name and a rarity column
+     * @return The printings, as {card name, number, rarity}
+     */
+    static List<String[]> parseCardList(Document dom) {
+        ArrayList<String[]> printings = new ArrayList<String[]>();
+        for (Element table : dom.select("table.wikitable")) {
+            Elements rows = table.getElementsByTag("tr");
+            if (rows.isEmpty()) continue;
+
+            int nameColumn = -1, numberColumn = -1, rarityColumn = -1;
+            Elements headers = rows.first().getElementsByTag("th");
+            for (int i = 0; i < headers.size(); i++) {
+                String header = headers.get(i).text().toLowerCase(Locale.US);
+                if (header.contains("name") && (nameColumn < 0 || header.contains("english"))) nameColumn = i;
+                else if (header.contains("number"))                                             numberColumn = i;
+                else if (header.contains("rarity"))                                             rarityColumn = i;
+            }
+            if (nameColumn < 0 || rarityColumn < 0) {
+                continue; // not a card list
+            }
+
+            for (int i = 1; i < rows.size(); i++) {
+                Elements cells = rows.get(i).getElementsByTag("td");
+                if (cells.size() <= Math.max(nameColumn, Math.max(numberColumn, rarityColumn))) continue;
+
+                // names are sometimes quoted, e.g. "Blue-Eyes White Dragon"
+                String name = cells.get(nameColumn).text().trim().replaceAll("^\"|\"$", "");
+                if (name.length() == 0) continue;
+                String number = numberColumn < 0? "" : cells.get(numberColumn).text().trim();
+                printings.add(new String[] {name, number, cells.get(rarityColumn).text().trim()});
+            }
+        }
+        return printings;
+    }
+
+    /**
+     * Replace the printings of a set, all in one transaction
+     */
+    private void store(String setLink, long revision, List<String[]> printings) {
+        SQLiteDatabase db = YGOCacheDatabase.getInstance(context).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete("card_set", "set_link = ?", new String[] {setLink});
+            ContentValues values = new ContentValues();
+            for (String[] printing : printings) {
+                values.clear();
+                values.put("set_link", setLink);
+                values.put("card", printing[0]);
+                values.put("number", printing[1]);
+                values.put("rarity", printing[2]);
+                db.insert("card_set", null, values);
+            }
+
+            values.clear();
+            values.put("set_link", setLink);
+            values.put("revision", revision);
+            db.insertWithOnConflict("card_set_source", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+}
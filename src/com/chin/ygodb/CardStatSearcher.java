@@ -0,0 +1,315 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+/**
+ * Search the cards in the offline database by their stats, with queries like
+ * "attribute:DARK level>=7 atk>2500 type:Dragon".
+ *
+ * The card table keeps the stats as display strings (e.g. "2500 / 2100" for the ATK/DEF), so a card_stat table
+ * with typed and indexed columns is derived from it on first use, and the queries are compiled to SQL over it.
+ * The types of each card (e.g. "Dragon / Effect") go into a card_type table with a row per type, indexed by type,
+ * and the names are matched through the full-text index of CardTextSearcher, so that no term scans the whole table.
+ *
+ * Supported fields are name, attribute, type, level, rank, scale, atk and def. Numeric fields take the operators
+ * :, =, !=, <, <=, > and >=, the others take : (for name, the name has words starting with each of the words given,
+ * for type, one of the types of the card is the one given, for attribute, equals). A value with spaces can be quoted,
+ * e.g. name:"dark magician". A term without a field is matched against the name.
+ *
+ * @author Chin
+ *
+ */
+public class CardStatSearcher {
+    private static final String STAT_TABLE = "card_stat";
+    private static final String TYPE_TABLE = "card_type";
+
+    // the stat table is derived from the card table, which is read-only for us
+    private static boolean tableReady = false;
+
+    // field[operator]value, where the value may be quoted
+    private static final Pattern TERM_PATTERN = Pattern.compile("(?:([a-zA-Z]+)(:|=|!=|<=|>=|<|>))?(\"[^\"]*\"?|\\S+)");
+    private static final Pattern INT_PATTERN = Pattern.compile("-?\\d+");
+
+    // the words of a name, as the full-text index splits them
+    private static final Pattern WORD_PATTERN = Pattern.compile("[\\p{L}\\p{N}]+");
+
+    private static final HashMap<String, String> NUMERIC_FIELDS = new HashMap<String, String>();
+    private static final HashMap<String, String> TEXT_FIELDS = new HashMap<String, String>();
+    static {
+        NUMERIC_FIELDS.put("level", "level");
+        NUMERIC_FIELDS.put("lv",    "level");
+        NUMERIC_FIELDS.put("rank",  "rank");
+        NUMERIC_FIELDS.put("scale", "pscale");
+        NUMERIC_FIELDS.put("atk",   "atk");
+        NUMERIC_FIELDS.put("def",   "def");
+
+        TEXT_FIELDS.put("name",      "name");
+        TEXT_FIELDS.put("attribute", "attribute");
+        TEXT_FIELDS.put("attr",      "attribute");
+        TEXT_FIELDS.put("type",      "type");
+        TEXT_FIELDS.put("types",     "type");
+    }
+
+    Context context;
+
+    /**
+     * A query compiled to a SQL where clause and its arguments
+     */
+    static class CompiledQuery {
+        final String where;
+        final String[] args;
+
+        CompiledQuery(String where, String[] args) {
+            this.where = where;
+            this.args = args;
+        }
+    }
+
+    public CardStatSearcher(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Build the stat table now if needed, so that the first search doesn't have to. Should be called off the UI thread.
+     */
+    public void prepareTable() {
+        ensureTable(new DatabaseQuerier(context).getDatabase());
+    }
+
+    /**
+     * Get the names of the cards matching a query, in alphabetical order
+     * @throws IllegalArgumentException If the query can't be understood
+     */
+    public List<String> search(String query) {
+        CompiledQuery compiled = compile(query);
+        DatabaseQuerier dbq = new DatabaseQuerier(context);
+        ArrayList<String> results = new ArrayList<String>();
+        if (!ensureTable(dbq.getDatabase()) || !CardTextSearcher.ensureIndex(dbq.getDatabase())) {
+            return results;
+        }
+
+        Cursor cursor = dbq.query("select name from " + STAT_TABLE + " where " + compiled.where + " order by name", compiled.args);
+        try {
+            while (cursor.moveToNext()) {
+                results.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return results;
+    }
+
+    /**
+     * Compile a query to a SQL where clause over the stat table
+     * @throws IllegalArgumentException If the query can't be understood
+     */
+    static CompiledQuery compile(String query) {
+        StringBuilder where = new StringBuilder();
+        ArrayList<String> args = new ArrayList<String>();
+
+        Matcher matcher = TERM_PATTERN.matcher(query.trim());
+        while (matcher.find()) {
+            String field = matcher.group(1) == null? "name" : matcher.group(1).toLowerCase(Locale.US);
+            String operator = matcher.group(2) == null? ":" : matcher.group(2);
+            String value = unquote(matcher.group(3));
+            if (value.length() == 0) {
+                continue;
+            }
+
+            String nameMatch = null;
+            if (field.equals("name")) {
+                nameMatch = toNameMatch(value);
+                if (nameMatch == null) {
+                    continue; // e.g. only punctuation, which is not indexed
+                }
+            }
+
+            if (where.length() > 0) {
+                where.append(" and ");
+            }
+
+            if (NUMERIC_FIELDS.containsKey(field)) {
+                Matcher intMatcher = INT_PATTERN.matcher(value);
+                if (!intMatcher.matches()) {
+                    throw new IllegalArgumentException("Not a number: " + value);
+                }
+                String sqlOperator = operator.equals(":")? "=" : operator;
+                where.append(NUMERIC_FIELDS.get(field)).append(' ').append(sqlOperator).append(" ?");
+                args.add(value);
+            }
+            else if (TEXT_FIELDS.containsKey(field)) {
+                if (!operator.equals(":") && !operator.equals("=")) {
+                    throw new IllegalArgumentException("Operator " + operator + " can't be used with " + field);
+                }
+                String column = TEXT_FIELDS.get(field);
+                if (column.equals("attribute")) {
+                    where.append("attribute = ?");
+                    args.add(value.toUpperCase(Locale.US));
+                }
+                else if (column.equals("type")) {
+                    // a whole type, so that "type:dragon" doesn't match "Sea Serpent Dragon..."
+                    where.append("id in (select card_id from " + TYPE_TABLE + " where type = ?)");
+                    args.add(value.trim().toLowerCase(Locale.US));
+                }
+                else {
+                    // the docid of the full-text index is the rowid of the card, which is also our id
+                    where.append("id in (select docid from " + CardTextSearcher.FTS_TABLE + " where "
+                            + CardTextSearcher.FTS_TABLE + " match ?)");
+                    args.add(nameMatch);
+                }
+            }
+            else {
+                throw new IllegalArgumentException("Unknown field: " + field);
+            }
+        }
+
+        if (where.length() == 0) {
+            where.append("1");
+        }
+        return new CompiledQuery(where.toString(), args.toArray(new String[args.size()]));
+    }
+
+    /**
+     * Turn e.g. "dark magi" into the full-text query "name:dark* name:magi*", i.e. names with words starting with each
+     * of these. Anything that is not a letter or a digit is dropped, so the user can't write a malformed query.
+     * @return The query, or null if there is no word in the value
+     */
+    private static String toNameMatch(String value) {
+        StringBuilder match = new StringBuilder();
+        Matcher matcher = WORD_PATTERN.matcher(value);
+        while (matcher.find()) {
+            match.append(match.length() == 0? "" : " ").append("name:").append(matcher.group()).append('*');
+        }
+        return match.length() == 0? null : match.toString();
+    }
+
+    private static String unquote(String value) {
+        if (value.startsWith("\"")) {
+            value = value.substring(1);
+            if (value.endsWith("\"")) {
+                value = value.substring(0, value.length() - 1);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Build the stat table from the card table if it's not there yet
+     * @return true if the table is ready to be used
+     */
+    private static synchronized boolean ensureTable(SQLiteDatabase db) {
+        if (tableReady) {
+            return true;
+        }
+
+        // both tables are built together, a stat table alone is from before the type table and is built again
+        Cursor cursor = db.rawQuery("select count(*) from sqlite_master where type = 'table' and name in (?, ?)",
+                new String[] {STAT_TABLE, TYPE_TABLE});
+        try {
+            cursor.moveToFirst();
+            if (cursor.getInt(0) == 2) {
+                tableReady = true;
+                return true;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (db.isReadOnly()) {
+            Log.w("YGODB", "Database is read-only, can't build the stat table");
+            return false;
+        }
+
+        Log.i("YGODB", "Building the stat table...");
+        long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.execSQL("drop table if exists " + STAT_TABLE);
+            db.execSQL("drop table if exists " + TYPE_TABLE);
+            db.execSQL("create table " + STAT_TABLE + " (id integer primary key, name text, attribute text, "
+                     + "level integer, rank integer, pscale integer, atk integer, def integer)");
+            db.execSQL("create table " + TYPE_TABLE + " (card_id integer, type text)");
+
+            cursor = db.rawQuery("select rowid, name, attribute, types, level, rank, pendulumScale, atkdef from card", null);
+            try {
+                ContentValues values = new ContentValues();
+                ContentValues typeValues = new ContentValues();
+                while (cursor.moveToNext()) {
+                    values.clear();
+                    values.put("id", cursor.getLong(0));
+                    values.put("name", cursor.getString(1));
+                    values.put("attribute", nullToEmpty(cursor.getString(2)).trim().toUpperCase(Locale.US));
+                    for (String type : splitTypes(cursor.getString(3))) {
+                        typeValues.clear();
+                        typeValues.put("card_id", cursor.getLong(0));
+                        typeValues.put("type", type);
+                        db.insert(TYPE_TABLE, null, typeValues);
+                    }
+                    values.put("level", firstInt(cursor.getString(4)));
+                    values.put("rank", firstInt(cursor.getString(5)));
+                    values.put("pscale", firstInt(cursor.getString(6)));
+
+                    // e.g. "2500 / 2100", "? / 0", or empty for spells and traps
+                    String[] atkdef = nullToEmpty(cursor.getString(7)).split("/");
+                    values.put("atk", firstInt(atkdef[0]));
+                    values.put("def", atkdef.length > 1? firstInt(atkdef[1]) : null);
+                    db.insert(STAT_TABLE, null, values);
+                }
+            } finally {
+                cursor.close();
+            }
+
+            for (String column : new String[] {"attribute", "level", "rank", "pscale", "atk", "def"}) {
+                db.execSQL("create index " + STAT_TABLE + "_" + column + " on " + STAT_TABLE + "(" + column + ")");
+            }
+            db.execSQL("create index " + TYPE_TABLE + "_type on " + TYPE_TABLE + "(type, card_id)");
+            db.execSQL("analyze " + TYPE_TABLE);
+            db.execSQL("analyze " + STAT_TABLE);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i("YGODB", "Done building the stat table in " + (System.currentTimeMillis() - start) + "ms.");
+
+        tableReady = true;
+        return true;
+    }
+
+    /**
+     * Turn e.g. "Dragon / Effect" into {"dragon", "effect"}
+     */
+    private static List<String> splitTypes(String types) {
+        ArrayList<String> list = new ArrayList<String>();
+        for (String type : nullToEmpty(types).split("/")) {
+            String t = type.trim().toLowerCase(Locale.US);
+            if (t.length() > 0 && !list.contains(t)) {
+                list.add(t);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return The first integer in the string, or null if there is none (e.g. for "?")
+     */
+    private static Integer firstInt(String s) {
+        if (s == null) return null;
+        Matcher matcher = INT_PATTERN.matcher(s);
+        return matcher.find()? Integer.valueOf(matcher.group()) : null;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null? "" : s;
+    }
+}
@@ -1,7 +1,24 @@
 package com.chin.ygodb;
 
+import java.io.File;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -10,19 +27,20 @@ import org.jsoup.nodes.Document;
 import org.jsoup.nodes.Element;
 import org.jsoup.select.Elements;
 
-import com.chin.common.Util;
 import com.chin.ygodb.CardStore;
+import com.chin.ygodb.TaskScheduler.Callback;
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
 import android.util.Log;
 
 /**
  * A singleton class that acts as a storage for card information. Support lazy loading information.
  *
  * For now:
- * - the cardDOM is saved, so if you want the details from it you need to parse it manually
+ * - a card's wiki page is parsed once into a CardRecord, which is what gets saved
  *
  * @author Chin
  *
@@ -30,12 +48,25 @@ import android.util.Log;
 public final class CardStore {
 
     public static class Pair {
-        public String key;
-        public String value;
+        public final String key;
+        public final String value;
         public Pair(String key, String value) {
             this.key = key;
             this.value = value;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Pair)) return false;
+            Pair other = (Pair) o;
+            return (key == null? other.key == null : key.equals(other.key))
+                && (value == null? other.value == null : value.equals(other.value));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null? 0 : key.hashCode()) * 31 + (value == null? 0 : value.hashCode());
+        }
     }
 
     public enum CardAdditionalInfoType{
@@ -71,19 +102,72 @@ public final class CardStore {
     // a list of all cards available, initialized in MainActivity's onCreate()
     public static ArrayList<String> cardList = null;
 
+    // a set of the names in cardList, for merging the online list into it
+    private static HashSet<String> cardSet = null;
+
     // map a card name to its wiki page url, initialized in MainActivity's onCreate()
-    public static Hashtable<String, String[]> cardLinkTable = null;
+    public static volatile ConcurrentHashMap<String, String[]> cardLinkTable = null;
+
+    // guards cardList and cardSet, which are added to from the threads fetching the online catalog
+    private static final Object cardListLock = new Object();
+
+    // by default let the record cache use up to 1/16 of the available heap. A record is only a few KB so this is plenty
+    private static final int DEFAULT_RECORD_CACHE_SIZE = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 16);
+
+    // a storage for cards' detail after being fetched online and parsed
+    private static SizedLruCache<String, CardRecord> cardRecordCache = new SizedLruCache<String, CardRecord>(DEFAULT_RECORD_CACHE_SIZE);
 
-    // a storage for cards' detail after being fetched online
-    private static Hashtable<String, Document> cardDomCache = new Hashtable<String, Document>();
+    // the card pages and the ruling/tips/trivia pages being fetched and parsed right now
+    private static final SingleFlight<String, CardRecord> cardRecordFlights = new SingleFlight<String, CardRecord>();
+    private static final SingleFlight<String, String[]> genericInfoFlights = new SingleFlight<String, String[]>();
+
+    // the cleaned ruling, tips and trivia of the cards, indexed by the ordinal of their CardAdditionalInfoType
+    private static final SizedLruCache<String, String[]> genericInfoCache = new SizedLruCache<String, String[]>(DEFAULT_RECORD_CACHE_SIZE / 2);
+
+    // the namespaces of the ruling, tips and trivia pages, in the order of CardAdditionalInfoType
+    private static final String[] GENERIC_INFO_NAMESPACES = {"Card Rulings", "Card Tips", "Card Trivia"};
+
+    // how long to wait for the wiki before showing the offline data instead
+    private static final long ONLINE_FETCH_BUDGET = 4000; // ms
+
+    // the row of the card last read from the offline database
+    private static volatile CardRow lastCardRow = null;
+
+    // the revision id of a wiki page, as embedded by MediaWiki in the page's script
+    private static final Pattern REVISION_PATTERN = Pattern.compile("wgCurRevisionId\\W*(\\d+)");
 
     private static CardStore CARDSTORE;
     private static Context context;
 
-    // flag: initialized the cardList, but not the cardLinkTable
+    // flag: initialized the cardList from the offline db
     static boolean initializedOffline = false;
 
-    static boolean initializedOnline = false;
+    // flag: merged the online list into the cardList and initialized the cardLinkTable
+    static volatile boolean initializedOnline = false;
+
+    // the download of the online catalog, shared by whoever asks for the card list while it is running
+    private static final SingleFlight<String, Void> catalogFlights = new SingleFlight<String, Void>();
+
+    // the catalog of online cards is saved to this file, so we don't have to download all of it on every start
+    private static final String CATALOG_SNAPSHOT_FILE = "catalog.bin";
+
+    // only look for new cards online if the catalog is older than this
+    private static final long CATALOG_REFRESH_INTERVAL = 12L * 60 * 60 * 1000; // 12 hours
+
+    // how far back before the last sync to look for new cards
+    private static final long CATALOG_REFRESH_MARGIN = 2L * 24 * 60 * 60 * 1000; // 2 days
+
+    // a catalog older than this is fetched all over again instead of being refreshed
+    private static final long CATALOG_FULL_REFRESH_INTERVAL = 30L * 24 * 60 * 60 * 1000; // 30 days
+
+    // when the online catalog was last synced with the wiki
+    private static long catalogTimestamp = 0;
+
+    private static final AtomicBoolean catalogRefreshStarted = new AtomicBoolean(false);
+
+    // the offset of the next page to fetch for each category of the online catalog, so that a failed fetch can be resumed
+    private static final ConcurrentHashMap<String, String> catalogOffsets = new ConcurrentHashMap<String, String>();
+    private static final String OFFSET_DONE = "";
     /**
      * Private constructor. For singleton.
      */
@@ -98,115 +182,421 @@ public final class CardStore {
      * Get the only instance of this class. Because of singleton.
      * @return The only instance of this class.
      */
-    public static CardStore getInstance(Context context) {
+    public static synchronized CardStore getInstance(Context context) {
         if (CARDSTORE == null) {
             CARDSTORE = new CardStore(context);
         }
         return CARDSTORE;
     }
 
+    /**
+     * A listener to be notified of cards being added to the card list while it is being initialized.
+     * Note that it is called on the initializing thread, not the UI thread.
+     */
+    public interface CardListListener {
+        void onCardsAdded(List<String> newCards);
+    }
+
     public void initializeCardList() throws Exception {
-        if (initializedOnline) return;
-        if (Util.hasNetworkConnectivity(context)) {
+        initializeCardList(null);
+    }
+
+    /**
+     * Initialize the card list from the offline database, then from the catalog snapshot or the wiki.
+     * The listener, if any, first gets all the cards we already have, then the new ones as each page is fetched online.
+     *
+     * The online catalog is downloaded without holding any lock. A caller coming in while it is being downloaded waits
+     * for that download instead of starting another one, but only the listener of the first caller gets the new cards.
+     * The card pages don't need any of this, see getCardUrlPath().
+     */
+    public void initializeCardList(final CardListListener listener) throws Exception {
+        initializeCardListOffline();
+        if (listener != null) {
+            listener.onCardsAdded(getCardListCopy());
+        }
+
+        if (!initializedOnline) {
+            catalogFlights.run("catalog", new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    initializeCardListOnline(listener);
+                    return null;
+                }
+            });
+        }
+        Log.i("YGODB", "Number of cards: " + cardList.size());
+    }
+
+    private void initializeCardListOnline(CardListListener listener) throws Exception {
+        if (initializedOnline) {
+            return; // done by a download that just ended
+        }
+
+        if (initializeCardListFromSnapshot(listener)) {
+            initializedOnline = true;
+        }
+        else if (getRouter().isOnline()) {
             Log.i("YGODB", "Initializing online...");
-            cardList = new ArrayList<String>(8192);
-            cardLinkTable = new Hashtable<String, String[]>(8192);
-            initializeCardListOnline(null, true);
-            initializeCardListOnline(null, false);
+            long startTime = System.currentTimeMillis();
+            if (cardLinkTable == null) {
+                cardLinkTable = new ConcurrentHashMap<String, String[]>(16384);
+            }
+            fetchCatalogs(listener);
+            synchronized (this) {
+                catalogTimestamp = startTime;
+                saveCardListSnapshot();
+            }
             initializedOnline = true;
             Log.i("YGODB", "Done initializing online.");
         }
-        else if (!initializedOffline) {
-            Log.i("YGODB", "Initializing offline...");
-            CardStore.cardList = new ArrayList<String>(8192);
-            initializeCardListOffline();
-            initializedOffline = true;
-            Log.i("YGODB", "Done initializing offline.");
-        }
-        Log.i("YGODB", "Number of cards: " + cardList.size());
     }
 
-    private void initializeCardListOffline() {
-        DatabaseQuerier dbq = new DatabaseQuerier(context);
-        SQLiteDatabase db = dbq.getDatabase();
-        Cursor cursor = db.rawQuery("select name from card", null);
+    /**
+     * Initialize the card link table from the catalog snapshot saved on disk, if there is one and it's not too old
+     * @return true if the snapshot was used
+     */
+    private boolean initializeCardListFromSnapshot(CardListListener listener) {
+        CardCatalogSnapshot snapshot = CardCatalogSnapshot.read(getCatalogSnapshotFile());
+        if (snapshot == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - snapshot.timestamp > CATALOG_FULL_REFRESH_INTERVAL && getRouter().isOnline()) {
+            // too old, cards may have been renamed or removed since then. Better to start over
+            return false;
+        }
 
-      if (cursor.moveToFirst()) {
-          while (cursor.isAfterLast() == false) {
-              String name = cursor.getString(cursor.getColumnIndex("name"));
-              cardList.add(name);
-              cursor.moveToNext();
-          }
-      }
+        Log.i("YGODB", "Initializing from snapshot...");
+        cardLinkTable = new ConcurrentHashMap<String, String[]>(Math.max(16384, snapshot.titles.size() * 2));
+        ArrayList<String> newCards = new ArrayList<String>();
+        for (int i = 0; i < snapshot.titles.size(); i++) {
+            addOnlineCard(snapshot.titles.get(i), snapshot.links.get(i), newCards);
+        }
+        if (listener != null && !newCards.isEmpty()) {
+            listener.onCardsAdded(newCards);
+        }
+        catalogTimestamp = snapshot.timestamp;
+        Log.i("YGODB", "Done initializing from snapshot.");
+        return true;
     }
 
-    private void initializeCardListOnline(String offset, boolean isTcg) throws Exception {
-        // this will return up to 5000 articles in the TCG_cards/OCG_cards category. Note that this is not always up-to-date,
-        // as newly added articles may take a day or two before showing up in here
-        String url;
-        if (isTcg) {
-            url = "http://yugioh.wikia.com/api/v1/Articles/List?category=TCG_cards&limit=5000&namespaces=0";
+    /**
+     * Fetch only the cards that were added to the wiki since the catalog was last synced, then save the catalog again.
+     * This is done at most once per run, and doesn't block the other users of the card list.
+     */
+    public void refreshCardList(CardListListener listener) {
+        if (!initializedOnline || System.currentTimeMillis() - catalogTimestamp < CATALOG_REFRESH_INTERVAL) {
+            return;
         }
-        else {
-            url = "http://yugioh.wikia.com/api/v1/Articles/List?category=OCG_cards&limit=5000&namespaces=0";
+        if (!getRouter().isOnline() || !catalogRefreshStarted.compareAndSet(false, true)) {
+            return;
         }
 
-        if (offset != null) {
-            url = url + "&offset=" + offset;
+        try {
+            Log.i("YGODB", "Refreshing card list online...");
+            long startTime = System.currentTimeMillis();
+
+            // cards can take some time to be categorized, so look back a bit further than the last sync
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            String since = format.format(new Date(catalogTimestamp - CATALOG_REFRESH_MARGIN));
+
+            refreshCardListOnline("TCG_cards", since, listener);
+            refreshCardListOnline("OCG_cards", since, listener);
+
+            synchronized (this) {
+                catalogTimestamp = startTime;
+                saveCardListSnapshot();
+            }
+            Log.i("YGODB", "Done refreshing card list online.");
+        } catch (Exception e) {
+            Log.w("YGODB", "Failed to refresh the card list online");
+            e.printStackTrace();
         }
-        String jsonString = Jsoup.connect(url).ignoreContentType(true).execute().body();
+    }
+
+    private void refreshCardListOnline(String category, String since, CardListListener listener) throws Exception {
+        String baseUrl = "http://yugioh.wikia.com/api.php?action=query&list=categorymembers&cmtitle=Category:" + category
+                + "&cmnamespace=0&cmsort=timestamp&cmdir=asc&cmstart=" + since + "&cmprop=ids|title&cmlimit=500&format=json";
+        String cmcontinue = null;
+        do {
+            String url = cmcontinue == null? baseUrl : baseUrl + "&cmcontinue=" + URLEncoder.encode(cmcontinue, "UTF-8");
+            JSONObject myJSON = new JSONObject(Jsoup.connect(url).ignoreContentType(true).execute().body());
+            JSONArray members = myJSON.getJSONObject("query").getJSONArray("categorymembers");
+
+            ArrayList<String> newCards = new ArrayList<String>();
+            for (int i = 0; i < members.length(); i++) {
+                JSONObject member = members.getJSONObject(i);
+                String cardName = member.getString("title");
+                String[] link = {CardCatalogSnapshot.defaultUrl(cardName), member.getString("pageid")};
+                addOnlineCard(cardName, link, newCards);
+            }
+            if (listener != null && !newCards.isEmpty()) {
+                listener.onCardsAdded(newCards);
+            }
 
-        JSONObject myJSON = new JSONObject(jsonString);
-        JSONArray myArray = myJSON.getJSONArray("items");
-        for (int i = 0; i < myArray.length(); i++) {
-            String cardName = myArray.getJSONObject(i).getString("title");
-            if (!cardLinkTable.containsKey(cardName)) {
+            // older MediaWiki versions use "query-continue", newer ones use "continue"
+            cmcontinue = null;
+            if (myJSON.has("query-continue")) {
+                cmcontinue = myJSON.getJSONObject("query-continue").getJSONObject("categorymembers").getString("cmcontinue");
+            }
+            else if (myJSON.has("continue")) {
+                cmcontinue = myJSON.getJSONObject("continue").getString("cmcontinue");
+            }
+        } while (cmcontinue != null);
+    }
+
+    /**
+     * Add a card from the online catalog to the link table, and to the card list if we didn't know about it.
+     * Safe to call from multiple threads.
+     */
+    private static void addOnlineCard(String cardName, String[] link, List<String> newCards) {
+        if (cardLinkTable.putIfAbsent(cardName, link) != null) {
+            return; // a duplicate, e.g. a card in both the TCG and the OCG category
+        }
+
+        // only cards that are not in the offline db are new to the list
+        synchronized (cardListLock) {
+            if (cardSet.add(cardName)) {
                 cardList.add(cardName);
-                String[] tmp = {myArray.getJSONObject(i).getString("url"),
-                                myArray.getJSONObject(i).getString("id")};
-                cardLinkTable.put(cardName, tmp);
+                newCards.add(cardName);
+            }
+        }
+    }
+
+    private static ArrayList<String> getCardListCopy() {
+        synchronized (cardListLock) {
+            return new ArrayList<String>(cardList);
+        }
+    }
+
+    private void saveCardListSnapshot() {
+        CardCatalogSnapshot.write(getCatalogSnapshotFile(), catalogTimestamp, getCardListCopy(), cardLinkTable);
+    }
+
+    private File getCatalogSnapshotFile() {
+        return new File(context.getFilesDir(), CATALOG_SNAPSHOT_FILE);
+    }
+
+    /**
+     * Initialize the card list from the offline database only. This is fast and doesn't touch the network.
+     */
+    public synchronized void initializeCardListOffline() {
+        if (initializedOffline) return;
+        Log.i("YGODB", "Initializing offline...");
+        ArrayList<String> cardList = new ArrayList<String>(8192);
+        DatabaseQuerier dbq = new DatabaseQuerier(context);
+        Cursor cursor = dbq.query("select name from card", null);
+        try {
+            while (cursor.moveToNext()) {
+                cardList.add(cursor.getString(0));
             }
+        } finally {
+            cursor.close();
         }
+        synchronized (cardListLock) {
+            CardStore.cardList = cardList;
+            cardSet = new HashSet<String>(cardList);
+        }
+        initializedOffline = true;
+        Log.i("YGODB", "Done initializing offline.");
+    }
 
-        if (myJSON.has("offset")) {
-            initializeCardListOnline((String) myJSON.get("offset"), isTcg);
+    /**
+     * Fetch the TCG and the OCG catalog at the same time. Each page is parsed as it is being downloaded.
+     */
+    private void fetchCatalogs(final CardListListener listener) throws Exception {
+        ArrayList<Callable<Void>> categories = new ArrayList<Callable<Void>>();
+        for (final String category : new String[] {"TCG_cards", "OCG_cards"}) {
+            categories.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    initializeCardListOnline(category, listener);
+                    return null;
+                }
+            });
         }
+
+        // e.g. an OutOfMemoryError while parsing a page, which should get through as it is
+        for (Future<Void> future : TaskScheduler.invokeAll(Pool.NETWORK, Priority.VISIBLE, categories)) {
+            TaskScheduler.getResult(future);
+        }
+    }
+
+    private void initializeCardListOnline(String category, CardListListener listener) throws Exception {
+        // resume from where we left off if a previous attempt failed halfway
+        String offset = catalogOffsets.get(category);
+        if (OFFSET_DONE.equals(offset)) {
+            return;
+        }
+
+        do {
+            // the items are streamed straight off the network into the card list
+            final ArrayList<String> newCards = new ArrayList<String>();
+            offset = ArticleListReader.read(getCatalogPageUrl(category, offset), new ArticleListReader.ItemHandler() {
+                @Override
+                public void onItem(String title, String url, String id) {
+                    addOnlineCard(title, new String[] {url, id}, newCards);
+                }
+            });
+
+            if (listener != null && !newCards.isEmpty()) {
+                listener.onCardsAdded(newCards);
+            }
+            catalogOffsets.put(category, offset == null? OFFSET_DONE : offset);
+        } while (offset != null);
+    }
+
+    private static String getCatalogPageUrl(String category, String offset) throws Exception {
+        // this will return up to 5000 articles in the TCG_cards/OCG_cards category. Note that this is not always up-to-date,
+        // as newly added articles may take a day or two before showing up in here
+        String url = "http://yugioh.wikia.com/api/v1/Articles/List?category=" + category + "&limit=5000&namespaces=0";
+        if (offset != null) {
+            url = url + "&offset=" + URLEncoder.encode(offset, "UTF-8");
+        }
+        return url;
+    }
+
+    /**
+     * Replace the cache used for the card records, e.g. to use a different size budget
+     */
+    public static void setCardRecordCache(SizedLruCache<String, CardRecord> cache) {
+        cardRecordCache = cache;
+    }
+
+    public static SizedLruCache<String, CardRecord> getCardRecordCache() {
+        return cardRecordCache;
+    }
+
+    public static void clearCardRecordCache() {
+        Log.i("YGODB", "Clearing card record cache: " + cardRecordCache);
+        cardRecordCache.clear();
+        genericInfoCache.clear();
+    }
+
+    /**
+     * @return true if the record of the card's wiki page is in the cache already. This doesn't count as a use of it.
+     */
+    public static boolean isCardRecordCached(String cardName) {
+        return cardRecordCache.contains(cardName);
     }
 
-    public void getCardDomReady(String cardName) throws Exception {
-        initializeCardList();
-        if (!Util.hasNetworkConnectivity(context)) {
-            return; // what else can we do? switch to offline db, meh
+    /**
+     * Get the record of a card's wiki page, fetching and parsing the page if it is not already in the cache. This
+     * doesn't wait for the download, the record is handed to the callback on the UI thread. It is null if we are
+     * offline, or if the page can't be fetched within the budget, in which case the caller keeps the offline record
+     * (see getCardRecordOffline()) it has shown.
+     * @param priority The priority of the download on the network pool
+     */
+    public void getCardRecord(final String cardName, final Priority priority, Callback<CardRecord> callback) {
+        CardRecord record = cardRecordCache.get(cardName);
+        if (record != null) {
+            TaskScheduler.postResult(callback, record); // already cached
+            return;
         }
-        if (cardDomCache.containsKey(cardName)) {
-            return; // already cached, just return
+
+        getRouter().fetch("card page", ONLINE_FETCH_BUDGET, priority, new Callable<CardRecord>() {
+            @Override
+            public CardRecord call() throws Exception {
+                // the detail tabs and tasks all ask for the record at the same time when a card is opened, only fetch it once
+                return cardRecordFlights.run(cardName, new Callable<CardRecord>() {
+                    @Override
+                    public CardRecord call() throws Exception {
+                        return fetchCardRecord(cardName, priority);
+                    }
+                });
+            }
+        }, callback);
+    }
+
+    private CardRecord fetchCardRecord(String cardName, Priority priority) throws Exception {
+        CardRecord record = cardRecordCache.get(cardName);
+        if (record != null) {
+            return record; // fetched by another flight that just ended
         }
 
-        String cardURL = "http://yugioh.wikia.com" + CardStore.cardLinkTable.get(cardName)[0];
+        String cardURL = "http://yugioh.wikia.com" + getCardUrlPath(cardName);
 
         String cardHTML = null;
         try {
-            cardHTML = Jsoup.connect(cardURL).ignoreContentType(true).execute().body();
+            cardHTML = HttpDiskCache.getInstance(context).get(cardURL);
         } catch (Exception e) {
             Log.e("CardDetail", "Error fetching the card HTML page");
-            e.printStackTrace();
+            throw e; // to every caller waiting on this flight
+        }
+
+        // parse everything we need in one go on the parse pool, the DOM is thrown away after this
+        final String html = cardHTML;
+        record = TaskScheduler.runAndWait(Pool.PARSE, priority, new Callable<CardRecord>() {
+            @Override
+            public CardRecord call() {
+                return parseCardRecord(html);
+            }
+        });
+        cardRecordCache.put(cardName, record, record.estimateSize());
+        return record;
+    }
+
+    /**
+     * Get the record of a card from the offline database only. This is a single local query, so it can be shown
+     * right away while the online record is being fetched. The record has no image link.
+     * @return The record, or null if the card is not in the offline database
+     */
+    public CardRecord getCardRecordOffline(String cardName) {
+        if (getCardRow(cardName) == null) {
+            return null;
         }
-        Document cardDOM = Jsoup.parse(cardHTML);
+        return new CardRecord(getCardLoreOffline(cardName), getCardInfoOffline(cardName), getCardStatusOffline(cardName), null, 0);
+    }
 
-        // save the DOM for later use. Should look into this so that it doesn't cause huge mem usage
-        cardDomCache.put(cardName, cardDOM);
+    /**
+     * @return true if the online data can be fetched, i.e. if offline data shown should be revalidated online
+     */
+    public boolean isOnline() {
+        return getRouter().isOnline();
     }
 
-    public Document getCardDom(String cardName) throws Exception {
-        initializeCardList();
-        getCardDomReady(cardName);
-        return cardDomCache.get(cardName);
+    private static DataSourceRouter getRouter() {
+        return DataSourceRouter.getInstance(context);
     }
 
-    public String getImageLink(String cardName) throws Exception {
-        getCardDomReady(cardName);
-        Document dom = cardDomCache.get(cardName);
+    /**
+     * Get the path of a card's wiki page, e.g. "/wiki/Dark_Magician". This doesn't wait for the online catalog,
+     * which is only used if it's there already.
+     */
+    private static String getCardUrlPath(String cardName) {
+        String[] link = cardLinkTable == null? null : cardLinkTable.get(cardName);
+        if (link != null) {
+            return link[0];
+        }
+
+        // a card from the offline db that is not (yet) in the online list, guess its url
+        return CardCatalogSnapshot.defaultUrl(cardName);
+    }
 
+    /**
+     * Extract the information we need from a card's wiki page. A part that can't be found is left null (or empty)
+     * so that the rest of the record is still usable.
+     */
+    private static CardRecord parseCardRecord(String cardHTML) {
+        Document dom = Jsoup.parse(cardHTML);
+
+        String lore = null, imageLink = null;
+        List<Pair> infos = new ArrayList<Pair>(), statuses = new ArrayList<Pair>();
+        try { lore      = parseCardLore(dom);   } catch (Exception e) { Log.w("YGODB", "Card lore not found online");   }
+        try { infos     = parseCardInfo(dom);   } catch (Exception e) { Log.w("YGODB", "Card info not found online");   }
+        try { statuses  = parseCardStatus(dom); } catch (Exception e) { Log.w("YGODB", "Card status not found online"); }
+        try { imageLink = parseImageLink(dom);  } catch (Exception e) { Log.w("YGODB", "Card image not found online");  }
+
+        long revision = 0;
+        Matcher matcher = REVISION_PATTERN.matcher(cardHTML);
+        if (matcher.find()) {
+            revision = Long.parseLong(matcher.group(1));
+        }
+
+        return new CardRecord(lore, infos, statuses, imageLink, revision);
+    }
+
+    private static String parseImageLink(Document dom) {
         Element td = dom.getElementsByClass("cardtable-cardimage").first();
 
         String imageUrl = td.getElementsByTag("a").first().attr("href");
@@ -214,42 +604,36 @@ public final class CardStore {
     }
 
 
-    //////////////////////////////////////////////////////////////////////
-    // CARD LORE
-    //////////////////////////////////////////////////////////////////////
-
-    public String getCardLore(String cardName) throws Exception {
-        if (Util.hasNetworkConnectivity(context)) {
-            return getCardLoreOnline(cardName);
+    /**
+     * Get the row of a card in the offline database. The last row read is kept, since the lore, info, status,
+     * rulings, tips and trivia of a card are all asked for one after the other when the card is opened.
+     * @return The row, or null if the card is not in the offline database
+     */
+    private CardRow getCardRow(String cardName) {
+        CardRow row = lastCardRow;
+        if (row != null && row.name.equals(cardName)) {
+            return row;
         }
-        else {
-            return getCardLoreOffline(cardName);
+
+        row = CardRow.query(new DatabaseQuerier(context), cardName);
+        if (row != null) {
+            lastCardRow = row;
         }
+        return row;
     }
 
-    private String getCardLoreOffline(String cardName) {
-        DatabaseQuerier dbq = new DatabaseQuerier(context);
-        SQLiteDatabase db = dbq.getDatabase();
-        Cursor cursor = db.rawQuery("select lore from card where name = ?", new String[] {cardName});
-
-        // assuming we always have 1 result...
-        cursor.moveToFirst();
+    //////////////////////////////////////////////////////////////////////
+    // CARD LORE
+    //////////////////////////////////////////////////////////////////////
 
-        String lore = cursor.getString(cursor.getColumnIndex("lore"));
-        return lore;
+    private String getCardLoreOffline(String cardName) {
+        CardRow row = getCardRow(cardName);
+        return row == null? "" : row.get(CardRow.LORE);
     }
 
-    private String getCardLoreOnline(String cardName) throws Exception {
-        initializeCardList();
-        getCardDomReady(cardName);
-        Document dom = cardDomCache.get(cardName);
-
+    private static String parseCardLore(Document dom) {
         Element effectBox = dom.getElementsByClass("cardtablespanrow").first().getElementsByClass("navbox-list").first();
-        String effect = YgoWikiaHtmlCleaner.getCleanedHtml(effectBox);
-
-        // turn <dl> into <p> and <dt> into <b>
-        effect = effect.replace("<dl", "<p").replace("dl>", "p>").replace("<dt", "<b").replace("dt>", "b>");
-        return effect;
+        return YgoWikiaHtmlCleaner.getCleanedLoreHtml(effectBox);
     }
 
 
@@ -257,43 +641,24 @@ public final class CardStore {
     // CARD INFO
     //////////////////////////////////////////////////////////////////////
 
-    public ArrayList<Pair> getCardInfo(String cardName) throws Exception {
-        if (Util.hasNetworkConnectivity(context)) {
-            return getCardInfoOnline(cardName);
-        }
-        else {
-            return getCardInfoOffline(cardName);
-        }
-    }
-
-    private ArrayList<Pair> getCardInfoOffline(String cardName) {
+    private List<Pair> getCardInfoOffline(String cardName) {
         ArrayList<Pair> array = new ArrayList<Pair>();
-        DatabaseQuerier dbq = new DatabaseQuerier(context);
-        SQLiteDatabase db = dbq.getDatabase();
-        Cursor cursor = db.rawQuery("select * from card where name = ?", new String[] {cardName});
-
-        // assuming we always have 1 result...
-        cursor.moveToFirst();
-
-        // order of the columns here is important, to make it persistent between online vs offline
-        String[] columns = new String[] {"attribute", "types", "type", "property", "level", "rank", "pendulumScale",
-                "atkdef", "cardnum", "passcode", "limitText", "ritualSpell", "ritualMonster", "fusionMaterials",
-                "synchroMaterial", "materials", "summonedBy", "effectTypes"};
+        CardRow row = getCardRow(cardName);
+        if (row == null) {
+            return array;
+        }
 
-        for (int i = 0; i < columns.length; i++) {
-            String value = cursor.getString(cursor.getColumnIndex(columns[i]));
+        for (int column : CardRow.INFO_COLUMNS) {
+            String value = row.get(column);
             if (!value.equals("")) {
-                array.add(new Pair(columnNameMap.get(columns[i]), value));
+                array.add(new Pair(columnNameMap.get(CardRow.COLUMNS[column]), value));
             }
         }
         return array;
     }
 
-    private ArrayList<Pair> getCardInfoOnline(String cardName) throws Exception {
-        initializeCardList();
+    private static List<Pair> parseCardInfo(Document dom) {
         ArrayList<Pair> infos = new ArrayList<CardStore.Pair>();
-        getCardDomReady(cardName);
-        Document dom = cardDomCache.get(cardName);
         Elements rows = dom.getElementsByClass("cardtable").first().getElementsByClass("cardtablerow");
 
         // first row is "Attribute" for monster, "Type" for spell/trap and "Types" for token
@@ -326,29 +691,15 @@ public final class CardStore {
     // CARD STATUS
     //////////////////////////////////////////////////////////////////////
 
-    public ArrayList<Pair> getCardStatus(String cardName) throws Exception {
-        if (Util.hasNetworkConnectivity(context)) {
-            return getCardStatusOnline(cardName);
-        }
-        else {
-            return getCardStatusOffline(cardName);
-        }
-    }
-
-    private ArrayList<Pair> getCardStatusOffline(String cardName) {
+    private List<Pair> getCardStatusOffline(String cardName) {
         ArrayList<Pair> array = new ArrayList<Pair>();
-        DatabaseQuerier dbq = new DatabaseQuerier(context);
-        SQLiteDatabase db = dbq.getDatabase();
-        Cursor cursor = db.rawQuery("select ocgStatus, tcgAdvStatus, tcgTrnStatus from card where name = ?", new String[] {cardName});
-
-        // assuming we always have 1 result...
-        cursor.moveToFirst();
-
-        // order of the columns here is important, to make it persistent between online vs offline
-        String[] columns = new String[] {"ocgStatus", "tcgAdvStatus", "tcgTrnStatus"};
+        CardRow row = getCardRow(cardName);
+        if (row == null) {
+            return array;
+        }
 
-        for (int i = 0; i < columns.length; i++) {
-            String value = cursor.getString(cursor.getColumnIndex(columns[i]));
+        for (int column : CardRow.STATUS_COLUMNS) {
+            String value = row.get(column);
             if (value.equals("")) {
                 continue;
             }
@@ -357,16 +708,13 @@ public final class CardStore {
                 value = "Unlimited";
             }
 
-            array.add(new Pair(columnNameMap.get(columns[i]), value));
+            array.add(new Pair(columnNameMap.get(CardRow.COLUMNS[column]), value));
         }
         return array;
     }
 
-    private ArrayList<Pair> getCardStatusOnline(String cardName) throws Exception {
-        initializeCardList();
+    private static List<Pair> parseCardStatus(Document dom) {
         ArrayList<Pair> statuses = new ArrayList<CardStore.Pair>();
-        getCardDomReady(cardName);
-        Document dom = cardDomCache.get(cardName);
 
         Elements statusRows = dom.getElementsByClass("cardtablestatuses").first().getElementsByTag("tr");
         Element statusRow = null;
@@ -396,80 +744,178 @@ public final class CardStore {
     // CARD RULING, TIPS AND TRIVIA
     //////////////////////////////////////////////////////////////////////
 
-    public String getCardRuling(String cardName) throws Exception {
-        return getCardGenericInfo(CardAdditionalInfoType.Ruling, cardName);
-    }
+    public String getCardGenericInfoOffline(CardAdditionalInfoType type, String cardName) throws Exception {
+        int column;
+        switch (type) {
+            case Ruling: column = CardRow.RULING; break;
+            case Tips:   column = CardRow.TIPS;   break;
+            case Trivia: column = CardRow.TRIVIA; break;
+            default:
+                throw new Exception("Unknown type of additional info!");
+        }
 
-    public String getCardTips(String cardName) throws Exception {
-        return getCardGenericInfo(CardAdditionalInfoType.Tips, cardName);
+        CardRow row = getCardRow(cardName);
+        String value = row == null? "" : row.get(column);
+        if (value.equals("")) {
+            value = "Not available.";
+        }
+        return value;
     }
 
-    public String getCardTrivia(String cardName) throws Exception {
-        return getCardGenericInfo(CardAdditionalInfoType.Trivia, cardName);
+    /**
+     * Get the ruling, tips or trivia of a card from the wiki. This doesn't wait for the download, the cleaned html of
+     * the info is handed to the callback on the UI thread. It is null if the card has no such page on the wiki, if we
+     * are offline, or if the pages can't be fetched within the budget, in which case the caller keeps the offline info
+     * (see getCardGenericInfoOffline()) it has shown.
+     * @param priority The priority of the download on the network pool
+     */
+    public void getCardGenericInfo(final CardAdditionalInfoType type, final String cardName, final Priority priority,
+                                   Callback<String> callback) {
+        String[] infos = genericInfoCache.get(cardName);
+        if (infos != null) {
+            TaskScheduler.postResult(callback, infos[type.ordinal()]);
+            return;
+        }
+
+        getRouter().fetch(type + " page", ONLINE_FETCH_BUDGET, priority, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                // the tabs ask for their info at the same time, the first one fetches all of them for the others
+                String[] infos = genericInfoFlights.run(cardName, new Callable<String[]>() {
+                    @Override
+                    public String[] call() throws Exception {
+                        return fetchCardGenericInfos(cardName, priority);
+                    }
+                });
+                return infos[type.ordinal()];
+            }
+        }, callback);
     }
 
-    public String getCardGenericInfo(CardAdditionalInfoType type, String cardName) throws Exception {
-        if (Util.hasNetworkConnectivity(context) && cardLinkTable != null) {
-            return getCardGenericInfoOnline(type, cardName);
+    /**
+     * Get the ruling, tips and trivia of a card. A first API call only asks for the current revision of the three pages,
+     * and the cleaned html of a page that hasn't changed since we last cleaned it is read from the disk. Only the pages
+     * that have changed (or that we don't have) are fetched, with a second API call, and cleaned.
+     * @return The cleaned HTML of each type of info, indexed by the ordinal of the type. Null for a page that doesn't exist
+     */
+    private String[] fetchCardGenericInfos(String cardName, Priority priority) throws Exception {
+        String[] infos = genericInfoCache.get(cardName);
+        if (infos != null) {
+            return infos; // fetched by another flight that just ended
         }
-        else {
-            return getCardGenericInfoOffline(type, cardName);
+
+        // e.g. "Dark Magician", the title of the card page, which is also the title of its sub pages
+        String pageTitle = URLDecoder.decode(getCardUrlPath(cardName).substring(6), "UTF-8").replace('_', ' ');
+        CardAdditionalInfoType[] types = CardAdditionalInfoType.values();
+        String[] titles = new String[types.length];
+        for (int i = 0; i < types.length; i++) {
+            titles[i] = GENERIC_INFO_NAMESPACES[i] + ":" + pageTitle;
         }
-    }
 
-    private String getCardGenericInfoOffline(CardAdditionalInfoType type, String cardName) throws Exception {
-        DatabaseQuerier dbq = new DatabaseQuerier(context);
-        SQLiteDatabase db = dbq.getDatabase();
-        String columnName = "";
-        switch (type) {
-            case Ruling: columnName = "ruling"; break;
-            case Tips:   columnName = "tips";   break;
-            case Trivia: columnName = "trivia"; break;
-            default:
-                throw new Exception("Unknown type of additional info!");
+        CleanedHtmlCache cleanedHtmlCache = CleanedHtmlCache.getInstance(context);
+        infos = new String[types.length];
+        ArrayList<Integer> changed = new ArrayList<Integer>();
+        JSONObject[] revisions;
+        try {
+            revisions = queryPageRevisions(titles, false);
+        } catch (Exception e) {
+            // can't tell whether what we have is current, but it is better than nothing
+            Log.w("YGODB", "Failed to check the revisions of the pages of " + cardName + ", using the cleaned html we have");
+            boolean found = false;
+            for (int i = 0; i < types.length; i++) {
+                infos[i] = cleanedHtmlCache.getLatest(cardName, types[i]);
+                found |= infos[i] != null;
+            }
+            if (!found) {
+                throw e;
+            }
+            return infos; // not kept in memory, so that the revisions are checked again next time
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (revisions[i] == null) continue; // no such page
+            infos[i] = cleanedHtmlCache.get(cardName, types[i], revisions[i].getLong("revid"));
+            if (infos[i] == null) {
+                changed.add(i);
+            }
         }
-        Cursor cursor = db.rawQuery("select " + columnName + " from card where name = ?", new String[] {cardName});
 
-        // assuming we always have 1 result...
-        cursor.moveToFirst();
+        if (!changed.isEmpty()) {
+            String[] changedTitles = new String[changed.size()];
+            for (int i = 0; i < changed.size(); i++) {
+                changedTitles[i] = titles[changed.get(i)];
+            }
 
-        String value = cursor.getString(cursor.getColumnIndex(columnName));
-        if (value.equals("")) {
-            value = "Not available.";
+            revisions = queryPageRevisions(changedTitles, true);
+            for (int i = 0; i < changed.size(); i++) {
+                if (revisions[i] == null) continue; // deleted in between?
+                int index = changed.get(i);
+                final String html = revisions[i].getString("*");
+                infos[index] = TaskScheduler.runAndWait(Pool.PARSE, priority, new Callable<String>() {
+                    @Override
+                    public String call() {
+                        return YgoWikiaHtmlCleaner.getCleanedHtml(Jsoup.parseBodyFragment(html).body());
+                    }
+                });
+                cleanedHtmlCache.put(cardName, types[index], revisions[i].getLong("revid"), infos[index]);
+            }
         }
-        return value;
+
+        int size = 0;
+        for (String info : infos) {
+            size += info == null? 0 : info.length() * 2;
+        }
+        genericInfoCache.put(cardName, infos, size + 64);
+        return infos;
     }
 
-    private String getCardGenericInfoOnline(CardAdditionalInfoType type, String cardName) throws Exception {
-        initializeCardList();
-        String baseUrl = "";
-        switch (type) {
-            case Ruling:
-                baseUrl = "http://yugioh.wikia.com/wiki/Card_Rulings:";
-                break;
-            case Tips:
-                baseUrl = "http://yugioh.wikia.com/wiki/Card_Tips:";
-                break;
-            case Trivia:
-                baseUrl = "http://yugioh.wikia.com/wiki/Card_Trivia:";
-                break;
-            default:
-                throw new Exception("Unknown type of additional info!");
+    /**
+     * Ask the API for the latest revision of some pages, all in one call
+     * @param withContent Whether to get the parsed content of the pages too, or only their revision id
+     * @return The latest revision of each page, in the order of the titles. Null for a page that doesn't exist
+     */
+    private JSONObject[] queryPageRevisions(String[] titles, boolean withContent) throws Exception {
+        StringBuilder titleParam = new StringBuilder();
+        for (int i = 0; i < titles.length; i++) {
+            titleParam.append(i == 0? "" : "|").append(titles[i]);
         }
-        String url = baseUrl + CardStore.cardLinkTable.get(cardName)[0].substring(6);
 
-        Document dom = null;
+        String url = "http://yugioh.wikia.com/api.php?action=query&prop=revisions&redirects&format=json"
+                + (withContent? "&rvprop=ids%7Ccontent&rvparse" : "&rvprop=ids")
+                + "&titles=" + URLEncoder.encode(titleParam.toString(), "UTF-8");
+
+        // the content is not kept in the HTTP cache, the cleaned html is what we keep
+        String body = withContent? Jsoup.connect(url).ignoreContentType(true).execute().body()
+                                 : HttpDiskCache.getInstance(context).get(url);
+        JSONObject query = new JSONObject(body).getJSONObject("query");
+
+        // the titles we asked for may have been normalized and redirected, follow them to the titles of the pages
+        HashMap<String, String> renames = new HashMap<String, String>();
+        for (String key : new String[] {"normalized", "redirects"}) {
+            JSONArray array = query.optJSONArray(key);
+            for (int i = 0; array != null && i < array.length(); i++) {
+                renames.put(array.getJSONObject(i).getString("from"), array.getJSONObject(i).getString("to"));
+            }
+        }
 
-        try {
-            dom = Jsoup.parse(Jsoup.connect(url).ignoreContentType(true).execute().body());
-        } catch (Exception e) {
-            Log.i("YGODB", "Error fetching " + url);
-            return "Not available.";
+        HashMap<String, JSONObject> latestRevisions = new HashMap<String, JSONObject>();
+        JSONObject pages = query.getJSONObject("pages");
+        Iterator<?> pageIds = pages.keys();
+        while (pageIds.hasNext()) {
+            JSONObject page = pages.getJSONObject((String) pageIds.next());
+            JSONArray revisions = page.optJSONArray("revisions");
+            if (revisions != null && revisions.length() > 0) {
+                latestRevisions.put(page.getString("title"), revisions.getJSONObject(0));
+            }
         }
 
-        Element content = dom.getElementById("mw-content-text");
-        String info = YgoWikiaHtmlCleaner.getCleanedHtml(content);
-        return info;
+        JSONObject[] result = new JSONObject[titles.length];
+        for (int i = 0; i < titles.length; i++) {
+            String title = titles[i];
+            for (int hops = 0; renames.containsKey(title) && hops < 3; hops++) {
+                title = renames.get(title);
+            }
+            result[i] = latestRevisions.get(title);
+        }
+        return result;
     }
 }
-
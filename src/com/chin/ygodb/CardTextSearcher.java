@@ -0,0 +1,221 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.util.Log;
+
+/**
+ * Full-text search over the lore, rulings, tips and trivia of the cards in the offline database.
+ *
+ * The search goes through a FTS4 table built from the card table on first use. It is built in the same database
+ * file, so it goes away (and is built again) whenever a new version of the database is shipped. Where sqlite supports
+ * it (3.7.9, i.e. Jelly Bean and up) it is an external content table, which only holds the index and reads the text
+ * from the card table, with the rowid of the card as the docid. On older versions it holds its own copy of the text.
+ *
+ * @author Chin
+ *
+ */
+public class CardTextSearcher {
+    static final String FTS_TABLE = "card_fts";
+    private static final String FTS_COLUMNS = "name, lore, ruling, tips, trivia";
+    private static final long NAME_MATCH_SCORE = 1000;
+
+    // the card table is read-only for us, so the index never goes stale within a version of the database
+    private static boolean indexReady = false;
+
+    Context context;
+
+    /**
+     * A card matching a text search
+     */
+    public static class Result {
+        public final String name;
+
+        // a short excerpt around the matched words, with the matches in <b> tags
+        public final String snippet;
+
+        public Result(String name, String snippet) {
+            this.name = name;
+            this.snippet = snippet;
+        }
+    }
+
+    public CardTextSearcher(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Build the index now if needed, so that the first search doesn't have to. Should be called off the UI thread.
+     */
+    public void prepareIndex() {
+        ensureIndex(new DatabaseQuerier(context).getDatabase());
+    }
+
+    /**
+     * Search the text of every card, best matches first. Cards whose name matches come first,
+     * then the ones with the most matches in their text.
+     * @param query A FTS query, e.g. "banish graveyard" or "\"special summon\""
+     * @param limit Maximum number of results
+     * @return The results, none if the query is not a valid FTS query (e.g. an unbalanced quote)
+     */
+    public List<Result> search(String query, int limit) {
+        DatabaseQuerier dbq = new DatabaseQuerier(context);
+        if (!ensureIndex(dbq.getDatabase())) {
+            return new ArrayList<Result>();
+        }
+
+        try {
+            return search(dbq, query, limit);
+        } catch (SQLiteException e) {
+            Log.i("YGODB", "Invalid full-text query \"" + query + "\": " + e.getMessage());
+            return new ArrayList<Result>();
+        }
+    }
+
+    private List<Result> search(DatabaseQuerier dbq, String query, int limit) {
+        ArrayList<Result> results = new ArrayList<Result>();
+
+        // rank all the matches first, which is cheap, then make the snippets only for the ones we return
+        ArrayList<long[]> ranked = new ArrayList<long[]>(); // {docid, score}
+        Cursor cursor = dbq.query("select docid, offsets(" + FTS_TABLE + ") from " + FTS_TABLE + " where " + FTS_TABLE + " match ?",
+                new String[] {query});
+        try {
+            while (cursor.moveToNext()) {
+                ranked.add(new long[] {cursor.getLong(0), score(cursor.getString(1))});
+            }
+        } finally {
+            cursor.close();
+        }
+        if (ranked.isEmpty()) {
+            return results;
+        }
+
+        Collections.sort(ranked, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] lhs, long[] rhs) {
+                return lhs[1] > rhs[1]? -1 : (lhs[1] == rhs[1]? 0 : 1);
+            }
+        });
+
+        int count = Math.min(limit, ranked.size());
+        StringBuilder ids = new StringBuilder();
+        HashMap<Long, Integer> order = new HashMap<Long, Integer>(count * 2);
+        for (int i = 0; i < count; i++) {
+            long docid = ranked.get(i)[0];
+            ids.append(i == 0? "" : ",").append(docid);
+            order.put(docid, i);
+        }
+
+        Result[] top = new Result[count];
+        cursor = dbq.query("select docid, name, snippet(" + FTS_TABLE + ", '<b>', '</b>', '...', -1, 12) from " + FTS_TABLE
+                + " where " + FTS_TABLE + " match ? and docid in (" + ids + ")", new String[] {query});
+        try {
+            while (cursor.moveToNext()) {
+                top[order.get(cursor.getLong(0))] = new Result(cursor.getString(1), cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        for (Result result : top) {
+            if (result != null) results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Score a match from its offsets(), which is a list of (column, term, byte offset, size) for each matched term.
+     * A match in the name (column 0) is worth more than any number of matches in the text.
+     */
+    private static long score(String offsets) {
+        String[] numbers = offsets.split(" ");
+        long score = 0;
+        for (int i = 0; i + 3 < numbers.length; i += 4) {
+            score += numbers[i].equals("0")? NAME_MATCH_SCORE : 1;
+        }
+        return score;
+    }
+
+    /**
+     * Build the FTS table if it's not there yet
+     * @return true if the table is ready to be used
+     */
+    static synchronized boolean ensureIndex(SQLiteDatabase db) {
+        if (indexReady) {
+            return true;
+        }
+
+        // the sql the table was created with, null if there is no table yet
+        String tableSql = null;
+        Cursor cursor = db.rawQuery("select sql from sqlite_master where type = 'table' and name = ?", new String[] {FTS_TABLE});
+        try {
+            if (cursor.moveToFirst()) {
+                tableSql = cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        // a table holding its own copy of the text, from before we used external content tables, is built again
+        // if this version of sqlite can do better
+        if (tableSql != null && (tableSql.contains("content=") || !supportsExternalContent(db))) {
+            indexReady = true;
+            return true;
+        }
+
+        if (db.isReadOnly()) {
+            Log.w("YGODB", "Database is read-only, can't build the full-text index");
+            return tableSql != null;
+        }
+
+        Log.i("YGODB", "Building the full-text index...");
+        long start = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            db.execSQL("drop table if exists " + FTS_TABLE);
+            if (supportsExternalContent(db)) {
+                db.execSQL("create virtual table " + FTS_TABLE + " using fts4(content=\"card\", " + FTS_COLUMNS + ")");
+                db.execSQL("insert into " + FTS_TABLE + "(" + FTS_TABLE + ") values ('rebuild')");
+            }
+            else {
+                db.execSQL("create virtual table " + FTS_TABLE + " using fts4(" + FTS_COLUMNS + ")");
+                db.execSQL("insert into " + FTS_TABLE + "(docid, " + FTS_COLUMNS + ") select rowid, " + FTS_COLUMNS + " from card");
+            }
+            db.execSQL("insert into " + FTS_TABLE + "(" + FTS_TABLE + ") values ('optimize')");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.i("YGODB", "Done building the full-text index in " + (System.currentTimeMillis() - start) + "ms.");
+
+        indexReady = true;
+        return true;
+    }
+
+    /**
+     * @return true if the sqlite of this device can make FTS4 tables with external content, which came with 3.7.9
+     */
+    private static boolean supportsExternalContent(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("select sqlite_version()", null);
+        try {
+            if (!cursor.moveToFirst()) return false;
+            String[] version = cursor.getString(0).split("\\.");
+            int major = Integer.parseInt(version[0]);
+            int minor = version.length > 1? Integer.parseInt(version[1]) : 0;
+            int patch = version.length > 2? Integer.parseInt(version[2]) : 0;
+            return major > 3 || (major == 3 && (minor > 7 || (minor == 7 && patch >= 9)));
+        } catch (NumberFormatException e) {
+            return false;
+        } finally {
+            cursor.close();
+        }
+    }
+}
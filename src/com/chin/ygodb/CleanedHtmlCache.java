@@ -0,0 +1,195 @@
+package com.chin.ygodb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.chin.ygodb.CardStore.CardAdditionalInfoType;
+
+/**
+ * A persistent cache of the cleaned ruling, tips and trivia of the cards, kept under the app's cache directory.
+ *
+ * There is one gzipped file per card and type of info, which starts with the revision id of the wiki page the html was
+ * cleaned from. An entry is only used if the page is still at that revision, so the html is only fetched and cleaned
+ * again once the page has been edited. When the revision can't be checked, getLatest() gives whatever html we have.
+ * The cache is capped in size and trimmed in LRU order.
+ *
+ * @author Chin
+ *
+ */
+public final class CleanedHtmlCache {
+    private static final String DIR_NAME = "cleaned";
+    private static final String SUFFIX = ".gz";
+    private static final int FILE_VERSION = 1;
+
+    private static final long DEFAULT_MAX_SIZE = 5 * 1024 * 1024; // 5 MB, compressed
+
+    private static CleanedHtmlCache INSTANCE;
+
+    private final File dir;
+    private final long maxSize;
+
+    // total size of the files in the cache, computed lazily
+    private long currentSize = -1;
+
+    private CleanedHtmlCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the only instance of this class
+     */
+    public static synchronized CleanedHtmlCache getInstance(Context context) {
+        if (INSTANCE == null) {
+            File dir = new File(context.getCacheDir(), DIR_NAME);
+            INSTANCE = new CleanedHtmlCache(dir, DEFAULT_MAX_SIZE);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @return The cleaned html of a card's info, or null if we don't have it for this revision of the page
+     */
+    public String get(String cardName, CardAdditionalInfoType type, long revision) {
+        return read(cardName, type, revision, false);
+    }
+
+    /**
+     * Get the cleaned html of a card's info whatever revision of the page it was cleaned from, e.g. when the current
+     * revision can't be checked because the wiki is down
+     * @return The html, or null if we don't have it at all
+     */
+    public String getLatest(String cardName, CardAdditionalInfoType type) {
+        return read(cardName, type, 0, true);
+    }
+
+    private String read(String cardName, CardAdditionalInfoType type, long revision, boolean anyRevision) {
+        File file = new File(dir, keyOf(cardName, type) + SUFFIX);
+        if (!file.exists()) return null;
+
+        try {
+            DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FILE_VERSION) {
+                    return null;
+                }
+                if (in.readLong() != revision && !anyRevision) {
+                    return null; // the page has changed since, the caller will put the new html in
+                }
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                file.setLastModified(System.currentTimeMillis());
+                return new String(bytes, "UTF-8");
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            Log.w("YGODB", "Failed to read the cleaned " + type + " of " + cardName);
+            return null;
+        }
+    }
+
+    public synchronized void put(String cardName, CardAdditionalInfoType type, long revision, String html) {
+        try {
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            String key = keyOf(cardName, type);
+            File file = new File(dir, key + SUFFIX);
+            long oldSize = file.length();
+
+            // compress in memory first, so that a failure doesn't leave half a file behind
+            byte[] bytes = html.getBytes("UTF-8");
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            DataOutputStream out = new DataOutputStream(new GZIPOutputStream(buffer));
+            try {
+                out.writeInt(FILE_VERSION);
+                out.writeLong(revision);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+
+            File tmp = new File(dir, key + SUFFIX + ".tmp");
+            FileOutputStream fileOut = new FileOutputStream(tmp);
+            try {
+                buffer.writeTo(fileOut);
+            } finally {
+                fileOut.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+
+            if (currentSize >= 0) {
+                currentSize += file.length() - oldSize;
+            }
+            trim();
+        } catch (IOException e) {
+            Log.w("YGODB", "Failed to write the cleaned " + type + " of " + cardName);
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is within its size cap
+     */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        if (currentSize < 0) {
+            currentSize = 0;
+            for (File file : files) {
+                currentSize += file.length();
+            }
+        }
+        if (currentSize <= maxSize) return;
+
+        // the last modified time is bumped on every hit, so it is our LRU order
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r? -1 : (l == r? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (currentSize <= maxSize) break;
+            currentSize -= file.length();
+            file.delete();
+        }
+    }
+
+    private static String keyOf(String cardName, CardAdditionalInfoType type) {
+        String name = type + ":" + cardName;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(name.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            // MD5 and UTF-8 are always available, but just in case
+            return Integer.toHexString(name.hashCode());
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.util.Log;
+
+import com.chin.ygodb.TaskScheduler.Callback;
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
+
+/**
+ * Decides whether data should come from the wiki or from the offline database.
+ *
+ * The connectivity state is kept up to date by a broadcast receiver, so checking it is free. On top of that, an online
+ * fetch is given a latency budget: if it takes longer than that (e.g. behind a captive portal or on a very slow link,
+ * or behind other downloads in the queue), the caller goes on with the offline data. The online fetch is left to
+ * finish in the background, so that its result is cached for the next time. After a few failures in a row, the wiki
+ * is not tried again for a while.
+ *
+ * The online fetches run on the network pool of the TaskScheduler, and nobody waits for them: the result is handed
+ * back on the UI thread, so no thread is held while the wiki takes its time.
+ *
+ * The latency and the failures of each source are recorded, see getStats().
+ *
+ * @author Chin
+ *
+ */
+public final class DataSourceRouter {
+    // after this many failed or timed out online fetches in a row, stop trying the wiki for a while
+    private static final int MAX_CONSECUTIVE_FAILURES = 3;
+    private static final long FAILURE_COOLDOWN = 60 * 1000; // ms
+
+    private static DataSourceRouter INSTANCE;
+
+    private volatile boolean connected;
+    private volatile long cooldownUntil = 0;
+    private int consecutiveFailures = 0;
+
+    private final HashMap<String, SourceStats> stats = new HashMap<String, SourceStats>();
+
+    /**
+     * The latency and failures of a source so far
+     */
+    public static class SourceStats {
+        public final String source;
+        public int successes = 0;
+        public int failures = 0;
+        public int timeouts = 0;      // timed out while fetching
+        public int queueTimeouts = 0; // timed out while still waiting in the queue of the network pool
+        public long totalTime = 0; // ms, of the successful fetches
+        public long maxTime = 0;   // ms
+
+        SourceStats(String source) {
+            this.source = source;
+        }
+
+        @Override
+        public String toString() {
+            return source + ": " + successes + " ok (average " + (successes == 0? 0 : totalTime / successes) + "ms, max "
+                    + maxTime + "ms), " + failures + " failed, " + timeouts + " timed out, " + queueTimeouts
+                    + " timed out in the queue";
+        }
+    }
+
+    private DataSourceRouter(Context context) {
+        connected = isConnected(context);
+    }
+
+    /**
+     * Get the only instance of this class, which starts listening to connectivity changes
+     */
+    public static synchronized DataSourceRouter getInstance(Context context) {
+        if (INSTANCE == null) {
+            Context appContext = context.getApplicationContext();
+            INSTANCE = new DataSourceRouter(appContext);
+            appContext.registerReceiver(INSTANCE.new ConnectivityReceiver(),
+                    new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+        }
+        return INSTANCE;
+    }
+
+    private static boolean isConnected(Context context) {
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo info = cm.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    private class ConnectivityReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            boolean wasConnected = connected;
+            connected = isConnected(context);
+            if (connected && !wasConnected) {
+                // a new network, give the wiki another chance
+                synchronized (DataSourceRouter.this) {
+                    consecutiveFailures = 0;
+                    cooldownUntil = 0;
+                }
+            }
+            Log.i("YGODB", "Connectivity changed, now " + (connected? "online" : "offline"));
+        }
+    }
+
+    /**
+     * @return true if we should try to get data from the wiki
+     */
+    public boolean isOnline() {
+        return connected && System.currentTimeMillis() >= cooldownUntil;
+    }
+
+    /**
+     * Get some data online, without waiting for it. The callback gets the data on the UI thread, or null if we are
+     * offline, if the online fetch fails, or if it doesn't end within the budget, in which case the caller goes on with
+     * the offline data it has. The budget counts from now, so the time spent in the queue of the network pool is
+     * part of it.
+     * @param source What is being fetched, for the stats, e.g. "card page"
+     * @param budget How long the callback can wait for the online fetch, in ms
+     * @param priority The priority of the online fetch on the network pool
+     */
+    public <T> void fetch(final String source, final long budget, Priority priority, final Callable<T> online,
+                          final Callback<T> callback) {
+        if (!isOnline()) {
+            TaskScheduler.postResult(callback, null);
+            return;
+        }
+
+        // whichever of the fetch and the timeout comes first calls back
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicLong startedAt = new AtomicLong(0);
+        final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                if (!done.compareAndSet(false, true)) {
+                    return;
+                }
+                // still in the queue says nothing about the wiki, so it doesn't count toward the cooldown
+                boolean started = startedAt.get() != 0;
+                Log.w("YGODB", "Fetching " + source + (started? " took" : " waited in the queue for") + " more than "
+                        + budget + "ms, using the offline data");
+                recordTimeout(source, started);
+                callback.onResult(null);
+            }
+        };
+        TaskScheduler.getUiHandler().postDelayed(timeout, budget);
+
+        // the fetch is left to finish after a timeout, so that its result is cached for the next time
+        TaskScheduler.getExecutor(Pool.NETWORK, priority).execute(new Runnable() {
+            @Override
+            public void run() {
+                startedAt.set(System.currentTimeMillis());
+                T result = null;
+                try {
+                    result = online.call();
+                    recordSuccess(source, System.currentTimeMillis() - startedAt.get());
+                } catch (Exception e) {
+                    Log.w("YGODB", "Failed to fetch " + source + ": " + e.getMessage());
+                    recordFailure(source);
+                }
+
+                if (done.compareAndSet(false, true)) {
+                    TaskScheduler.getUiHandler().removeCallbacks(timeout);
+                    TaskScheduler.postResult(callback, result);
+                }
+            }
+        });
+    }
+
+    private synchronized SourceStats getOrCreateStats(String source) {
+        SourceStats s = stats.get(source);
+        if (s == null) {
+            s = new SourceStats(source);
+            stats.put(source, s);
+        }
+        return s;
+    }
+
+    private synchronized void recordSuccess(String source, long time) {
+        SourceStats s = getOrCreateStats(source);
+        s.successes++;
+        s.totalTime += time;
+        s.maxTime = Math.max(s.maxTime, time);
+        consecutiveFailures = 0;
+    }
+
+    private synchronized void recordFailure(String source) {
+        getOrCreateStats(source).failures++;
+        countFailure();
+    }
+
+    /**
+     * @param started Whether the fetch had left the queue, i.e. whether it is the wiki that was too slow
+     */
+    private synchronized void recordTimeout(String source, boolean started) {
+        SourceStats s = getOrCreateStats(source);
+        if (started) {
+            s.timeouts++;
+            countFailure();
+        }
+        else {
+            s.queueTimeouts++;
+        }
+    }
+
+    private synchronized void countFailure() {
+        if (++consecutiveFailures >= MAX_CONSECUTIVE_FAILURES) {
+            Log.w("YGODB", consecutiveFailures + " online fetches failed in a row, staying offline for a while");
+            cooldownUntil = System.currentTimeMillis() + FAILURE_COOLDOWN;
+            consecutiveFailures = 0;
+        }
+    }
+
+    /**
+     * @return A copy of the stats of every source
+     */
+    public synchronized List<SourceStats> getStats() {
+        ArrayList<SourceStats> list = new ArrayList<SourceStats>();
+        for (SourceStats s : stats.values()) {
+            SourceStats copy = new SourceStats(s.source);
+            copy.successes = s.successes;
+            copy.failures = s.failures;
+            copy.timeouts = s.timeouts;
+            copy.queueTimeouts = s.queueTimeouts;
+            copy.totalTime = s.totalTime;
+            copy.maxTime = s.maxTime;
+            list.add(copy);
+        }
+        return list;
+    }
+}
@@ -1,25 +1,161 @@
 package com.chin.ygodb;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
 
 /**
- * A class for making queries to our sqlite database
+ * A class for making queries to our sqlite database.
+ *
+ * There is a single database object for the whole app. It is opened and tuned once, ideally in the background when
+ * the app starts (see openInBackground()), and is safe to use from any thread. With write-ahead logging on, several
+ * threads can read from it at the same time instead of waiting on each other.
+ *
+ * Queries made through query() are timed, see getQueryStats().
+ *
  * @author Chin
  */
 public class DatabaseQuerier {
-    private static SQLiteDatabase db;
+    // a query taking longer than this is logged
+    private static final long SLOW_QUERY_THRESHOLD = 50; // ms
+
+    private static volatile SQLiteDatabase db;
+    private static final HashMap<String, QueryStats> queryStats = new HashMap<String, QueryStats>();
     Context context;
 
+    /**
+     * How long a query has taken so far
+     */
+    public static class QueryStats {
+        public final String sql;
+        public int count = 0;
+        public long totalTime = 0; // ms
+        public long maxTime = 0;   // ms
+
+        QueryStats(String sql) {
+            this.sql = sql;
+        }
+
+        @Override
+        public String toString() {
+            return count + " x " + sql + ": total " + totalTime + "ms, average " + (count == 0? 0 : totalTime / count)
+                    + "ms, max " + maxTime + "ms";
+        }
+    }
+
     public DatabaseQuerier(Context context) {
         this.context = context;
     }
 
+    /**
+     * Open the database on a background thread, so that whoever needs it first (often the UI thread) doesn't have to
+     */
+    public static void openInBackground(final Context context) {
+        TaskScheduler.getExecutor(TaskScheduler.Pool.DISK, TaskScheduler.Priority.VISIBLE).execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    open(context);
+                } catch (Exception e) {
+                    Log.e("YGODB", "Unable to open the database");
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
     public SQLiteDatabase getDatabase() {
-        if (db == null) {
-            YGOSqliteDatabase dbHelper = new YGOSqliteDatabase(context);
-            db = dbHelper.getReadableDatabase();
+        SQLiteDatabase database = db;
+        return database != null? database : open(context);
+    }
+
+    private static synchronized SQLiteDatabase open(Context context) {
+        if (db != null) {
+            return db;
         }
+
+        long start = System.currentTimeMillis();
+        YGOSqliteDatabase dbHelper = new YGOSqliteDatabase(context.getApplicationContext());
+        SQLiteDatabase database = dbHelper.getReadableDatabase();
+        tune(database);
+        Log.i("YGODB", "Opened the database in " + (System.currentTimeMillis() - start) + "ms.");
+
+        db = database;
         return db;
     }
+
+    private static void tune(SQLiteDatabase database) {
+        if (!database.isReadOnly()) {
+            // lets the background readers (search, card details...) run at the same time instead of one after the other
+            database.enableWriteAheadLogging();
+        }
+
+        // No PRAGMA mmap_size or cache_size here: a pragma only applies to the connection it is run on, and the
+        // framework gives no way to run one on each of the connections of the pool that the readers use with
+        // write-ahead logging on. These connections keep the page cache size the framework gives them.
+    }
+
+    /**
+     * Run a query and time it. The query is run right away (and not when the cursor is first moved, as with
+     * rawQuery()), so the time recorded is the actual time taken by the query.
+     */
+    public Cursor query(String sql, String[] selectionArgs) {
+        long start = System.currentTimeMillis();
+        Cursor cursor = getDatabase().rawQuery(sql, selectionArgs);
+        cursor.getCount(); // this is what actually runs the query
+        long time = System.currentTimeMillis() - start;
+
+        synchronized (queryStats) {
+            QueryStats stats = queryStats.get(sql);
+            if (stats == null) {
+                stats = new QueryStats(sql);
+                queryStats.put(sql, stats);
+            }
+            stats.count++;
+            stats.totalTime += time;
+            stats.maxTime = Math.max(stats.maxTime, time);
+        }
+
+        if (time > SLOW_QUERY_THRESHOLD) {
+            Log.w("YGODB", "Slow query (" + time + "ms): " + sql);
+        }
+        return cursor;
+    }
+
+    /**
+     * @return The stats of every query run through query(), the ones that took the most time in total first
+     */
+    public static List<QueryStats> getQueryStats() {
+        ArrayList<QueryStats> list = new ArrayList<QueryStats>();
+        synchronized (queryStats) {
+            for (QueryStats stats : queryStats.values()) {
+                QueryStats copy = new QueryStats(stats.sql);
+                copy.count = stats.count;
+                copy.totalTime = stats.totalTime;
+                copy.maxTime = stats.maxTime;
+                list.add(copy);
+            }
+        }
+
+        Collections.sort(list, new Comparator<QueryStats>() {
+            @Override
+            public int compare(QueryStats lhs, QueryStats rhs) {
+                return lhs.totalTime > rhs.totalTime? -1 : (lhs.totalTime == rhs.totalTime? 0 : 1);
+            }
+        });
+        return list;
+    }
+
+    public static void logQueryStats() {
+        for (QueryStats stats : getQueryStats()) {
+            Log.i("YGODB", stats.toString());
+        }
+    }
 }
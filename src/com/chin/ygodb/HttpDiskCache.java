@@ -0,0 +1,284 @@
+package com.chin.ygodb;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.jsoup.Connection;
+import org.jsoup.HttpStatusException;
+import org.jsoup.Jsoup;
+
+import android.content.Context;
+import android.util.Log;
+
+/**
+ * A persistent HTTP cache for the wiki pages we fetch, kept under the app's cache directory.
+ *
+ * Each url is stored as two files: a small meta file with the ETag, Last-Modified and time of
+ * the last fetch, and a body file with the content. A cached page is served as-is within the
+ * freshness window, after that it is revalidated with If-None-Match/If-Modified-Since so an
+ * unchanged page only costs a 304. The cache is capped in size and trimmed in LRU order.
+ *
+ * @author Chin
+ *
+ */
+public final class HttpDiskCache {
+    private static final String DIR_NAME = "http";
+    private static final String META_SUFFIX = ".meta";
+    private static final String BODY_SUFFIX = ".body";
+    private static final int META_VERSION = 1;
+
+    private static final long DEFAULT_MAX_SIZE = 20 * 1024 * 1024;  // 20 MB
+    private static final long DEFAULT_FRESHNESS = 6 * 60 * 60 * 1000; // 6 hours
+
+    private static HttpDiskCache INSTANCE;
+
+    private final File dir;
+    private final long maxSize;
+    private final long freshness;
+
+    // total size of the files in the cache, computed lazily
+    private long currentSize = -1;
+
+    private static class Meta {
+        String etag;
+        String lastModified;
+        long fetchedAt;
+    }
+
+    private HttpDiskCache(File dir, long maxSize, long freshness) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+        this.freshness = freshness;
+    }
+
+    /**
+     * Get the only instance of this class
+     */
+    public static synchronized HttpDiskCache getInstance(Context context) {
+        if (INSTANCE == null) {
+            File dir = new File(context.getCacheDir(), DIR_NAME);
+            INSTANCE = new HttpDiskCache(dir, DEFAULT_MAX_SIZE, DEFAULT_FRESHNESS);
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Get the body of a url, from the disk if we have a fresh or still valid copy of it, from the network otherwise.
+     * If the network or the server fails (an IOException or a 5xx) but we have a stale copy, the stale copy is returned.
+     */
+    public String get(String url) throws IOException {
+        String key = keyOf(url);
+        File metaFile = new File(dir, key + META_SUFFIX);
+        File bodyFile = new File(dir, key + BODY_SUFFIX);
+
+        Meta meta = readMeta(metaFile);
+        String cachedBody = meta == null? null : readBody(bodyFile);
+        if (cachedBody == null) {
+            meta = null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (meta != null && now - meta.fetchedAt < freshness) {
+            bodyFile.setLastModified(now);
+            return cachedBody;
+        }
+
+        Connection connection = Jsoup.connect(url).ignoreContentType(true).ignoreHttpErrors(true);
+        if (meta != null) {
+            if (meta.etag.length() > 0)         connection.header("If-None-Match", meta.etag);
+            if (meta.lastModified.length() > 0) connection.header("If-Modified-Since", meta.lastModified);
+        }
+
+        Connection.Response response;
+        try {
+            response = connection.execute();
+        } catch (IOException e) {
+            if (cachedBody != null) {
+                Log.w("YGODB", "Failed to revalidate " + url + ", serving stale copy");
+                return cachedBody;
+            }
+            throw e;
+        }
+
+        if (response.statusCode() == 304 && meta != null) {
+            meta.fetchedAt = now;
+            writeMeta(metaFile, meta);
+            bodyFile.setLastModified(now);
+            return cachedBody;
+        }
+        if (response.statusCode() >= 500 && cachedBody != null) {
+            Log.w("YGODB", "Failed to revalidate " + url + " (HTTP " + response.statusCode() + "), serving stale copy");
+            return cachedBody;
+        }
+        if (response.statusCode() != 200) {
+            throw new HttpStatusException("HTTP error fetching URL", response.statusCode(), url);
+        }
+
+        String body = response.body();
+        Meta newMeta = new Meta();
+        newMeta.etag = nullToEmpty(response.header("ETag"));
+        newMeta.lastModified = nullToEmpty(response.header("Last-Modified"));
+        newMeta.fetchedAt = now;
+        put(key, newMeta, body);
+        return body;
+    }
+
+    /**
+     * Remove everything from the cache
+     */
+    public synchronized void clear() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        currentSize = 0;
+    }
+
+    private synchronized void put(String key, Meta meta, String body) {
+        try {
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+            File metaFile = new File(dir, key + META_SUFFIX);
+            File bodyFile = new File(dir, key + BODY_SUFFIX);
+            long oldSize = metaFile.length() + bodyFile.length();
+
+            byte[] bytes = body.getBytes("UTF-8");
+            File tmp = new File(dir, key + BODY_SUFFIX + ".tmp");
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(bytes);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(bodyFile)) {
+                tmp.delete();
+                return;
+            }
+            writeMeta(metaFile, meta);
+
+            if (currentSize >= 0) {
+                currentSize += metaFile.length() + bodyFile.length() - oldSize;
+            }
+            trim();
+        } catch (IOException e) {
+            Log.w("YGODB", "Failed to write to the HTTP cache");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the cache is within its size cap
+     */
+    private void trim() {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        if (currentSize < 0) {
+            currentSize = 0;
+            for (File file : files) {
+                currentSize += file.length();
+            }
+        }
+        if (currentSize <= maxSize) return;
+
+        // the body file's last modified time is bumped on every hit, so it is our LRU order
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified(), r = rhs.lastModified();
+                return l < r? -1 : (l == r? 0 : 1);
+            }
+        });
+
+        for (File file : files) {
+            if (currentSize <= maxSize) break;
+            String name = file.getName();
+            if (!name.endsWith(BODY_SUFFIX)) continue;
+
+            File metaFile = new File(dir, name.substring(0, name.length() - BODY_SUFFIX.length()) + META_SUFFIX);
+            currentSize -= file.length() + metaFile.length();
+            file.delete();
+            metaFile.delete();
+        }
+    }
+
+    private static Meta readMeta(File file) {
+        if (!file.exists()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                if (in.readInt() != META_VERSION) return null;
+                Meta meta = new Meta();
+                meta.etag = in.readUTF();
+                meta.lastModified = in.readUTF();
+                meta.fetchedAt = in.readLong();
+                return meta;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void writeMeta(File file, Meta meta) {
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+            try {
+                out.writeInt(META_VERSION);
+                out.writeUTF(meta.etag);
+                out.writeUTF(meta.lastModified);
+                out.writeLong(meta.fetchedAt);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.w("YGODB", "Failed to write HTTP cache meta " + file.getName());
+        }
+    }
+
+    private static String readBody(File file) {
+        if (!file.exists()) return null;
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                in.readFully(bytes);
+            } finally {
+                in.close();
+            }
+            return new String(bytes, "UTF-8");
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String keyOf(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("MD5");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            // MD5 and UTF-8 are always available, but just in case
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static String nullToEmpty(String s) {
+        return s == null? "" : s;
+    }
+}
@@ -0,0 +1,51 @@
+package com.chin.ygodb;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Makes concurrent calls for the same key share a single call. The first caller for a key does the work, and the
+ * callers coming in while it is running wait for it and get the same result (or the same exception).
+ *
+ * Nothing is kept once the call is done, so this is meant to be used in front of a cache, not in place of one.
+ *
+ * @author Chin
+ *
+ */
+public final class SingleFlight<K, V> {
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<K, FutureTask<V>>();
+
+    /**
+     * Run the callable for the key, unless it is already running for it, in which case wait for that run instead
+     */
+    public V run(K key, Callable<V> callable) throws Exception {
+        FutureTask<V> task = new FutureTask<V>(callable);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run(); // on the calling thread
+            } finally {
+                inFlight.remove(key, task);
+            }
+        }
+
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) throw (Exception) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return The number of calls currently running
+     */
+    public int size() {
+        return inFlight.size();
+    }
+}
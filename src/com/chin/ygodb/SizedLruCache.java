@@ -0,0 +1,91 @@
+package com.chin.ygodb;
+
+import android.util.LruCache;
+
+/**
+ * A LRU cache that is bounded by an estimated size in bytes instead of the number of entries.
+ *
+ * The size of an entry is given when it is put into the cache and is remembered with it, so the
+ * value itself is free to change afterward (e.g. a Jsoup DOM that gets cleaned up in place).
+ *
+ * @author Chin
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class SizedLruCache<K, V> {
+
+    private static class Entry<V> {
+        final V value;
+        final int size;
+        Entry(V value, int size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+
+    private final LruCache<K, Entry<V>> cache;
+
+    /**
+     * @param maxSizeInBytes The budget of this cache. Least recently used entries are evicted when it is exceeded.
+     */
+    public SizedLruCache(int maxSizeInBytes) {
+        cache = new LruCache<K, Entry<V>>(maxSizeInBytes) {
+            @Override
+            protected int sizeOf(K key, Entry<V> entry) {
+                return entry.size;
+            }
+        };
+    }
+
+    /**
+     * Get a value from the cache, marking it as the most recently used one
+     * @return The value, or null if it is not in the cache
+     */
+    public V get(K key) {
+        Entry<V> entry = cache.get(key);
+        return entry == null? null : entry.value;
+    }
+
+    /**
+     * Check whether a value is in the cache, without marking it as used or counting a hit or a miss. This copies the
+     * entries of the cache, so it is meant for the occasional check (e.g. before a prefetch), not for every read.
+     */
+    public boolean contains(K key) {
+        return cache.snapshot().containsKey(key);
+    }
+
+    /**
+     * Put a value into the cache, evicting the least recently used entries if needed
+     * @param sizeInBytes The estimated size of the value
+     * @return The previous value for the key, if any
+     */
+    public V put(K key, V value, int sizeInBytes) {
+        Entry<V> previous = cache.put(key, new Entry<V>(value, Math.max(1, sizeInBytes)));
+        return previous == null? null : previous.value;
+    }
+
+    public V remove(K key) {
+        Entry<V> previous = cache.remove(key);
+        return previous == null? null : previous.value;
+    }
+
+    /**
+     * Remove everything from the cache
+     */
+    public void clear() {
+        cache.evictAll();
+    }
+
+    public int size()          { return cache.size();          }
+    public int maxSize()       { return cache.maxSize();       }
+    public int hitCount()      { return cache.hitCount();      }
+    public int missCount()     { return cache.missCount();     }
+    public int evictionCount() { return cache.evictionCount(); }
+
+    @Override
+    public String toString() {
+        return "SizedLruCache[size=" + size() + "/" + maxSize() + ", hits=" + hitCount()
+                + ", misses=" + missCount() + ", evictions=" + evictionCount() + "]";
+    }
+}
@@ -0,0 +1,84 @@
+package com.chin.ygodb;
+
+import java.util.concurrent.Callable;
+
+import com.chin.common.MyTagHandler;
+
+import com.chin.ygodb.TaskScheduler.Callback;
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
+
+import android.text.Html;
+import android.text.Spanned;
+import android.util.Log;
+
+/**
+ * The html of the lore, ruling, tips and trivia rendered into Spanned, by html.
+ *
+ * Rendering a long ruling page takes tens of milliseconds, so it is done on the parse pool of the TaskScheduler,
+ * and the Spanned is handed over to the UI thread. Going back to a tab or a card renders nothing
+ * again as long as it is still in the cache.
+ *
+ * The Spanned from here are shared, so they should only be shown with TextView.setText(), which copies them.
+ *
+ * @author Chin
+ *
+ */
+public final class SpannedCache {
+    // a rendered page is roughly twice the size of its text, spans included. 1 MB is a few dozen pages
+    private static final int MAX_SIZE = 1024 * 1024;
+
+    private static final SizedLruCache<String, Spanned> cache = new SizedLruCache<String, Spanned>(MAX_SIZE);
+
+    private SpannedCache() {}
+
+    /**
+     * Get the rendered html from the cache, or render it on the parse pool and put it in the cache. Waits for the
+     * rendering, so it should be called from a background thread that is not on the parse pool.
+     * @param priority The priority of the rendering on the parse pool
+     */
+    public static Spanned render(final String html, Priority priority) throws Exception {
+        Spanned spanned = cache.get(html);
+        if (spanned == null) {
+            spanned = TaskScheduler.runAndWait(Pool.PARSE, priority, new Callable<Spanned>() {
+                @Override
+                public Spanned call() {
+                    return Html.fromHtml(html, null, new MyTagHandler());
+                }
+            });
+            cache.put(html, spanned, html.length() * 2 + spanned.length() * 2);
+        }
+        return spanned;
+    }
+
+    /**
+     * Get the rendered html from the cache, or render it on the parse pool and put it in the cache, without waiting.
+     * Must be called on the UI thread, where the callback gets the Spanned, or null if the rendering failed.
+     * @param priority The priority of the rendering on the parse pool
+     */
+    public static void render(final String html, Priority priority, final Callback<Spanned> callback) {
+        Spanned spanned = cache.get(html);
+        if (spanned != null) {
+            callback.onResult(spanned);
+            return;
+        }
+
+        TaskScheduler.getExecutor(Pool.PARSE, priority).execute(new Runnable() {
+            @Override
+            public void run() {
+                Spanned spanned = null;
+                try {
+                    spanned = Html.fromHtml(html, null, new MyTagHandler());
+                    cache.put(html, spanned, html.length() * 2 + spanned.length() * 2);
+                } catch (Exception e) {
+                    Log.e("YGODB", "Failed to render the html: " + e.getMessage());
+                }
+                TaskScheduler.postResult(callback, spanned);
+            }
+        });
+    }
+
+    public static void clear() {
+        cache.clear();
+    }
+}
@@ -0,0 +1,303 @@
+package com.chin.ygodb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * The thread pools that the background work of the app runs on, instead of the single serial executor that
+ * AsyncTask.execute() uses since Honeycomb.
+ *
+ * There is a pool for each kind of work (network, parsing, disk), so that e.g. a slow download doesn't hold up
+ * a database query. Within a pool, the work for what the user is looking at right now goes first, then the work
+ * for what is around it (e.g. the other tabs), then the prefetching. Work of the same priority is run in order.
+ *
+ * To run an AsyncTask on a pool: task.executeOnExecutor(TaskScheduler.getExecutor(Pool.NETWORK, Priority.VISIBLE), ...)
+ *
+ * The pools have a fixed number of threads, so a task should not wait on work it has put on its own pool: if all the
+ * threads of the pool do that, nothing is left to run the work. runAndWait() and invokeAll() are the ways to hand
+ * work over to (another) pool and wait for it. Work that waits on the network, which can take any time, should not
+ * wait at all: it is queued on the network pool and its result is handed back to the UI thread with a Callback.
+ *
+ * @author Chin
+ *
+ */
+public final class TaskScheduler {
+
+    /**
+     * In order, from the first to be run to the last
+     */
+    public enum Priority {
+        VISIBLE,    // for what is on the screen
+        BACKGROUND, // for what is not on the screen but likely to be soon, e.g. the other tabs
+        PREFETCH    // for what may never be shown
+    }
+
+    public enum Pool {
+        NETWORK(4),
+        PARSE(2),
+        DISK(2);
+
+        final int threadCount;
+        final Scheduler scheduler;
+
+        Pool(int threadCount) {
+            this.threadCount = threadCount;
+            this.scheduler = new Scheduler(name(), threadCount);
+        }
+    }
+
+    /**
+     * The depth and wait time of the queue of a pool
+     */
+    public static class QueueStats {
+        public final String pool;
+        public final int depth;      // tasks waiting right now
+        public final int maxDepth;
+        public final long tasksRun;
+        public final long[] totalWaitTime = new long[Priority.values().length]; // ms, by priority
+        public final long[] tasksRunByPriority = new long[Priority.values().length];
+        public final long maxWaitTime; // ms
+
+        QueueStats(Scheduler scheduler) {
+            pool = scheduler.name;
+            depth = scheduler.executor.getQueue().size();
+            maxDepth = scheduler.maxDepth.get();
+            maxWaitTime = scheduler.maxWaitTime.get();
+            long run = 0;
+            for (int i = 0; i < totalWaitTime.length; i++) {
+                totalWaitTime[i] = scheduler.totalWaitTime[i].get();
+                tasksRunByPriority[i] = scheduler.tasksRun[i].get();
+                run += tasksRunByPriority[i];
+            }
+            tasksRun = run;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(pool + ": " + depth + " waiting (max " + maxDepth + "), " + tasksRun + " run");
+            for (Priority priority : Priority.values()) {
+                int i = priority.ordinal();
+                long average = tasksRunByPriority[i] == 0? 0 : totalWaitTime[i] / tasksRunByPriority[i];
+                sb.append(", ").append(priority).append(" waited ").append(average).append("ms on average");
+            }
+            return sb.append(", max wait ").append(maxWaitTime).append("ms").toString();
+        }
+    }
+
+    /**
+     * Gets the result of some work, on the UI thread
+     */
+    public interface Callback<T> {
+        void onResult(T result);
+    }
+
+    private static final Handler uiHandler = new Handler(Looper.getMainLooper());
+
+    private TaskScheduler() {}
+
+    /**
+     * Hand a result over to a callback on the UI thread
+     */
+    public static <T> void postResult(final Callback<T> callback, final T result) {
+        uiHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                callback.onResult(result);
+            }
+        });
+    }
+
+    /**
+     * @return A handler for the UI thread, e.g. for timeouts
+     */
+    public static Handler getUiHandler() {
+        return uiHandler;
+    }
+
+    /**
+     * Get an executor that runs its tasks on a pool, with a priority
+     */
+    public static Executor getExecutor(Pool pool, Priority priority) {
+        return pool.scheduler.executors[priority.ordinal()];
+    }
+
+    /**
+     * Run a task on a pool and wait for it, e.g. to parse a page on the parse pool once it is downloaded. The calling
+     * thread must not be one of the pool's, and the task must not wait on anything itself.
+     * @throws Exception The error of the task, as it is
+     */
+    public static <T> T runAndWait(Pool pool, Priority priority, Callable<T> callable) throws Exception {
+        FutureTask<T> task = new FutureTask<T>(callable);
+        getExecutor(pool, priority).execute(task);
+        return getResult(task);
+    }
+
+    /**
+     * Run tasks in parallel on a pool and wait for all of them. The calling thread runs the tasks that the pool hasn't
+     * started yet itself, so it never waits on a pool that is full, even if it is one of the pool's threads.
+     * @return The futures of the tasks, all done, in the order of the tasks
+     */
+    public static <T> List<Future<T>> invokeAll(Pool pool, Priority priority, List<? extends Callable<T>> callables)
+            throws InterruptedException {
+        ArrayList<FutureTask<T>> tasks = new ArrayList<FutureTask<T>>(callables.size());
+        for (Callable<T> callable : callables) {
+            FutureTask<T> task = new FutureTask<T>(callable);
+            tasks.add(task);
+            getExecutor(pool, priority).execute(task);
+        }
+
+        for (FutureTask<T> task : tasks) {
+            task.run(); // does nothing if the pool got to it first
+        }
+        for (FutureTask<T> task : tasks) {
+            try {
+                task.get();
+            } catch (ExecutionException e) {
+                // for the caller to get from the future
+            }
+        }
+        return new ArrayList<Future<T>>(tasks);
+    }
+
+    /**
+     * Get the result of a task, or rethrow its error as it is (e.g. an OutOfMemoryError while parsing a page)
+     */
+    public static <T> T getResult(Future<T> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) throw (Error) cause;
+            if (cause instanceof Exception) throw (Exception) cause;
+            throw new Exception(cause);
+        }
+    }
+
+    public static QueueStats getStats(Pool pool) {
+        return new QueueStats(pool.scheduler);
+    }
+
+    public static void logStats() {
+        for (Pool pool : Pool.values()) {
+            Log.i("YGODB", getStats(pool).toString());
+        }
+    }
+
+    /**
+     * A pool, its priority queue and the metrics of that queue
+     */
+    private static class Scheduler {
+        final String name;
+        final ThreadPoolExecutor executor;
+        final Executor[] executors = new Executor[Priority.values().length];
+
+        final AtomicLong sequence = new AtomicLong();
+        final AtomicInteger maxDepth = new AtomicInteger();
+        final AtomicLong maxWaitTime = new AtomicLong();
+        final AtomicLong[] totalWaitTime = new AtomicLong[Priority.values().length];
+        final AtomicLong[] tasksRun = new AtomicLong[Priority.values().length];
+
+        Scheduler(final String name, int threadCount) {
+            this.name = name;
+            final AtomicInteger threadNumber = new AtomicInteger();
+
+            // the queue is unbounded, so the pool never grows past its core size
+            executor = new ThreadPoolExecutor(threadCount, threadCount, 30, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    Thread thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, name + " #" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            executor.allowCoreThreadTimeOut(true);
+
+            for (final Priority priority : Priority.values()) {
+                totalWaitTime[priority.ordinal()] = new AtomicLong();
+                tasksRun[priority.ordinal()] = new AtomicLong();
+                executors[priority.ordinal()] = new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        executor.execute(new PrioritizedTask(Scheduler.this, command, priority));
+                        int depth = executor.getQueue().size();
+                        if (depth > maxDepth.get()) {
+                            maxDepth.set(depth); // not exact under contention, good enough for a metric
+                        }
+                    }
+                };
+            }
+        }
+
+        void onTaskStarted(Priority priority, long waitTime) {
+            totalWaitTime[priority.ordinal()].addAndGet(waitTime);
+            tasksRun[priority.ordinal()].incrementAndGet();
+            if (waitTime > maxWaitTime.get()) {
+                maxWaitTime.set(waitTime);
+            }
+        }
+    }
+
+    /**
+     * A task in the queue of a pool, ordered by priority then by the order it came in
+     */
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final Scheduler scheduler;
+        final Runnable command;
+        final Priority priority;
+        final long sequence;
+        final long enqueuedAt = System.currentTimeMillis();
+
+        PrioritizedTask(Scheduler scheduler, Runnable command, Priority priority) {
+            this.scheduler = scheduler;
+            this.command = command;
+            this.priority = priority;
+            this.sequence = scheduler.sequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            scheduler.onTaskStarted(priority, System.currentTimeMillis() - enqueuedAt);
+            if (priority == Priority.PREFETCH) {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            }
+            try {
+                command.run();
+            } finally {
+                if (priority == Priority.PREFETCH) {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask another) {
+            if (priority != another.priority) {
+                return priority.ordinal() - another.priority.ordinal();
+            }
+            return sequence < another.sequence? -1 : (sequence == another.sequence? 0 : 1);
+        }
+    }
+}
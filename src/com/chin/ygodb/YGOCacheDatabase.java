@@ -0,0 +1,73 @@
+package com.chin.ygodb;
+
+import java.io.File;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+/**
+ * Helper class for our own database, where we keep what we fetch from the wiki. Unlike ygo.db it is not
+ * shipped with the app, and everything in it can be fetched again, so it is simply rebuilt on upgrade.
+ * @author Chin
+ *
+ */
+public class YGOCacheDatabase extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME = "ygocache.db";
+    public static final int DATABASE_VERSION = 2;
+
+    // the SharedPreferences files that the booster names and cover links used to be kept in, before this database
+    private static final String[] OLD_PREFERENCE_FILES = {"boosterImgLink.txt", "boosterName.txt"};
+
+    private static YGOCacheDatabase INSTANCE;
+
+    private final Context context;
+
+    private YGOCacheDatabase(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this.context = context;
+    }
+
+    public static synchronized YGOCacheDatabase getInstance(Context context) {
+        if (INSTANCE == null) {
+            INSTANCE = new YGOCacheDatabase(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // the booster packs, with their article id on the wiki, their name and the link to their cover image
+        db.execSQL("create table booster (link text primary key, id integer, name text, image text)");
+
+        // the cards printed in each set, and the revision of the set's page they were read from
+        db.execSQL("create table card_set (set_link text, card text, number text, rarity text)");
+        db.execSQL("create index card_set_card on card_set(card)");
+        db.execSQL("create index card_set_set_link on card_set(set_link)");
+        db.execSQL("create table card_set_source (set_link text primary key, revision integer)");
+
+        deleteOldPreferenceFiles();
+    }
+
+    /**
+     * The boosters are fetched into this database from now on, the old files are of no use anymore
+     */
+    private void deleteOldPreferenceFiles() {
+        File dir = new File(context.getApplicationInfo().dataDir, "shared_prefs");
+        for (String name : OLD_PREFERENCE_FILES) {
+            File file = new File(dir, name + ".xml");
+            if (file.exists() && !file.delete()) {
+                Log.w("YGODB", "Unable to delete " + file);
+            }
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        db.execSQL("drop table if exists booster");
+        db.execSQL("drop table if exists card_set");
+        db.execSQL("drop table if exists card_set_source");
+        onCreate(db);
+    }
+}
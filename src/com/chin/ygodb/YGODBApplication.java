@@ -12,6 +12,12 @@ public class YGODBApplication extends Application {
     public void onCreate() {
         super.onCreate();
 
+        // the database is needed for pretty much everything, so get it ready while the UI is being set up
+        DatabaseQuerier.openInBackground(this);
+
+        // start following the connectivity changes
+        DataSourceRouter.getInstance(this);
+
         DisplayImageOptions defaultOptions = new DisplayImageOptions.Builder()
             .cacheInMemory(true)
             .cacheOnDisk(true)
@@ -23,4 +29,11 @@ public class YGODBApplication extends Application {
             .build();
         ImageLoader.getInstance().init(config);
     }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        CardStore.clearCardRecordCache();
+        SpannedCache.clear();
+    }
 }
\ No newline at end of file
@@ -1,71 +1,210 @@
 package com.chin.ygodb;
 
-import org.jsoup.nodes.Attribute;
-import org.jsoup.nodes.Attributes;
+import java.util.Arrays;
+
+import org.jsoup.helper.StringUtil;
+import org.jsoup.nodes.DataNode;
 import org.jsoup.nodes.Element;
 import org.jsoup.nodes.Node;
-import org.jsoup.select.Elements;
+import org.jsoup.nodes.TextNode;
+import org.jsoup.select.NodeTraversor;
+import org.jsoup.select.NodeVisitor;
 
+/**
+ * Turns a part of a wiki page into the simple html that we show.
+ *
+ * It is all done in one walk through the DOM, which writes the cleaned html as it goes and leaves the DOM as it is:
+ * the navigation box, scripts, the table of content, the references etc. are skipped, comments and attributes are
+ * dropped, span and a tags are dropped but not what is in them, and block elements without any text are taken back
+ * out of the html once we know they have no text.
+ *
+ * @author Chin
+ *
+ */
 public class YgoWikiaHtmlCleaner {
+    private static final String UPPER_DECK_NOTICE = "These TCG rulings were issued by Upper Deck Entertainment";
+
     static String getCleanedHtml(Element content) {
-        Elements navboxes = content.select("table.navbox");
-        if (!navboxes.isEmpty()) {navboxes.first().remove();} // remove the navigation box
-
-        content.select("script").remove();               // remove <script> tags
-        content.select("noscript").remove();             // remove <noscript> tags
-        content.select("#toc").remove();                 // remove the table of content
-        content.select("sup").remove();                  // remove the sup tags
-        content.select("#References").remove();          // remove the reference header
-        content.select(".references").remove();          // remove the references section
-        content.select(".mbox-image").remove();          // remove the image in the "previously official ruling" box
-
-        // remove the "Previously Official Rulings" notice
-        Elements tables = content.getElementsByTag("table");
-        for (Element table : tables) {
-            if (table.text().startsWith("These TCG rulings were issued by Upper Deck Entertainment")) {
-                // TODO: may want to put a placeholder here so we know to put it back in later
-                table.remove();
+        return clean(content, false);
+    }
+
+    /**
+     * Same as getCleanedHtml(), but with <dl> turned into <p> and <dt> into <b>, which is how we show the lore
+     */
+    static String getCleanedLoreHtml(Element content) {
+        return clean(content, true);
+    }
+
+    private static String clean(Element content, boolean isLore) {
+        CleaningVisitor visitor = new CleaningVisitor(content, isLore);
+        new NodeTraversor(visitor).traverse(content);
+        return visitor.html.toString();
+    }
+
+    private static class CleaningVisitor implements NodeVisitor {
+        final StringBuilder html = new StringBuilder();
+        final Element root; // only what is inside it is written
+        final boolean isLore;
+
+        boolean navboxSkipped = false; // only the first navigation box is skipped
+        Node skipped = null;           // the node being skipped along with everything in it, if any
+        int preformatted = 0;          // how many <pre> we are in, whitespace is kept as is in them
+        int textCount = 0;             // how many non-blank text nodes were written so far
+
+        // where the element open at each depth starts in the html, and what textCount was then
+        int[] starts = new int[32];
+        int[] textCounts = new int[32];
+
+        CleaningVisitor(Element root, boolean isLore) {
+            this.root = root;
+            this.isLore = isLore;
+        }
+
+        @Override
+        public void head(Node node, int depth) {
+            if (skipped != null || node == root) {
+                return;
+            }
+
+            if (node instanceof TextNode) {
+                TextNode textNode = (TextNode) node;
+                if (!textNode.isBlank()) {
+                    textCount++;
+                }
+                appendText(textNode.getWholeText());
             }
+            else if (node instanceof DataNode) {
+                html.append(((DataNode) node).getWholeData());
+            }
+            else if (node instanceof Element) {
+                Element element = (Element) node;
+                if (isSkipped(element)) {
+                    skipped = element;
+                    return;
+                }
+
+                if (depth >= starts.length) {
+                    starts = Arrays.copyOf(starts, depth * 2);
+                    textCounts = Arrays.copyOf(textCounts, depth * 2);
+                }
+                starts[depth] = html.length();
+                textCounts[depth] = textCount;
+
+                if (isUnwrapped(element)) {
+                    return;
+                }
+                if (element.tagName().equals("pre")) {
+                    preformatted++;
+                }
+                html.append('<').append(getName(element));
+                if (isVoid(element)) {
+                    html.append(element.tag().isEmpty()? ">" : " />");
+                }
+                else {
+                    html.append('>');
+                }
+            }
+            // anything else, i.e. comments, is dropped
         }
 
-        removeComments(content);                         // remove comments
-        removeAttributes(content);                       // remove all attributes. Has to be at the end, otherwise can't grab id, etc.
-        removeEmptyTags(content);                        // remove all empty tags
+        @Override
+        public void tail(Node node, int depth) {
+            if (skipped != null) {
+                if (node == skipped) {
+                    skipped = null;
+                }
+                return;
+            }
+            if (node == root || !(node instanceof Element)) {
+                return;
+            }
 
-        // convert to text
-        String text = content.html();
+            Element element = (Element) node;
+            if (isUnwrapped(element)) {
+                return;
+            }
+            if (element.tagName().equals("pre")) {
+                preformatted--;
+            }
 
-        // remove useless tags
-        text = text.replace("<span>", "").replace("</span>", "").replace("<a>", "").replace("</a>", "");
-        return text;
-    }
+            if (element.isBlock() && textCount == textCounts[depth]) {
+                html.setLength(starts[depth]); // no text in it, take it back out
+            }
+            else if (!isVoid(element)) {
+                html.append("</").append(getName(element)).append('>');
+            }
+        }
 
-    private static void removeComments(Node node) {
-        for (int i = 0; i < node.childNodes().size();) {
-            Node child = node.childNode(i);
-            if (child.nodeName().equals("#comment"))
-                child.remove();
-            else {
-                removeComments(child);
-                i++;
+        private boolean isSkipped(Element element) {
+            String tagName = element.tagName();
+            if (tagName.equals("script") || tagName.equals("noscript") || tagName.equals("sup")) {
+                return true;
             }
+
+            String id = element.id();
+            if (id.equals("toc") || id.equals("References")) {
+                return true; // the table of content and the reference header
+            }
+
+            if (element.className().length() > 0) {
+                if (element.hasClass("references")) {
+                    return true;
+                }
+                if (element.hasClass("mbox-image")) {
+                    return true; // the image in the "previously official ruling" box
+                }
+                if (!navboxSkipped && tagName.equals("table") && element.hasClass("navbox")) {
+                    navboxSkipped = true;
+                    return true;
+                }
+            }
+
+            // the "Previously Official Rulings" notice
+            // TODO: may want to put a placeholder here so we know to put it back in later
+            return tagName.equals("table") && element.text().startsWith(UPPER_DECK_NOTICE);
+        }
+
+        private static boolean isUnwrapped(Element element) {
+            String tagName = element.tagName();
+            return tagName.equals("span") || tagName.equals("a");
         }
-    }
 
-    private static void removeAttributes(Element doc) {
-        Elements el = doc.getAllElements();
-        for (Element e : el) {
-            Attributes at = e.attributes();
-            for (Attribute a : at) {
-                e.removeAttr(a.getKey());
+        private static boolean isVoid(Element element) {
+            return element.childNodeSize() == 0 && element.tag().isSelfClosing();
+        }
+
+        private String getName(Element element) {
+            String tagName = element.tagName();
+            if (isLore) {
+                if (tagName.equals("dl")) return "p";
+                if (tagName.equals("dt")) return "b";
             }
+            return tagName;
         }
-    }
 
-    private static void removeEmptyTags(Element doc) {
-        for (Element element : doc.select("*")) {
-            if (!element.hasText() && element.isBlock()) {
-                element.remove();
+        /**
+         * Escape the text and collapse its whitespace, as jsoup would when writing the html
+         */
+        private void appendText(String text) {
+            boolean lastWasWhite = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (preformatted == 0 && StringUtil.isWhitespace(c)) {
+                    if (!lastWasWhite) {
+                        html.append(' ');
+                        lastWasWhite = true;
+                    }
+                    continue;
+                }
+                lastWasWhite = false;
+
+                switch (c) {
+                    case '&':      html.append("&amp;");  break;
+                    case '<':      html.append("&lt;");   break;
+                    case '>':      html.append("&gt;");   break;
+                    case '\u00A0': html.append("&nbsp;"); break;
+                    default:       html.append(c);
+                }
             }
         }
     }
@@ -1,18 +1,18 @@
 package com.chin.ygodb.activity;
 
-import android.annotation.SuppressLint;
 import android.os.Bundle;
 import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
 import android.support.v4.view.ViewPager;
 import android.util.TypedValue;
-import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.LinearLayout;
 import com.chin.ygodb.PagerSlidingTabStrip;
+import com.chin.ygodb.TaskScheduler;
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
 import com.chin.ygodb.asyncTask.PopulateBoosterAsyncTask;
 import com.chin.ygodb2.R;
 
@@ -61,15 +61,12 @@ public class BoosterActivity extends BaseFragmentActivity {
             setRetainInstance(true);
         }
 
-        @SuppressLint("RtlHardcoded")
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
-            View view = inflater.inflate(R.layout.fragment_general_linear, container, false);
-            LinearLayout layout = (LinearLayout) view.findViewById(R.id.fragment_layout);
-            layout.setGravity(Gravity.RIGHT);
+            View view = inflater.inflate(R.layout.fragment_booster_grid, container, false);
 
-            myTask = (PopulateBoosterAsyncTask) new PopulateBoosterAsyncTask(layout, (BoosterActivity) getActivity())
-                            .execute();
+            myTask = (PopulateBoosterAsyncTask) new PopulateBoosterAsyncTask(view, (BoosterActivity) getActivity())
+                            .executeOnExecutor(TaskScheduler.getExecutor(Pool.NETWORK, Priority.VISIBLE));
 
             return view;
         }
@@ -3,9 +3,13 @@ package com.chin.ygodb.activity;
 import com.chin.ygodb.CardStore;
 import com.chin.ygodb.CardStore.CardAdditionalInfoType;
 import com.chin.ygodb.PagerSlidingTabStrip;
+import com.chin.ygodb.SpannedCache;
+import com.chin.ygodb.TaskScheduler;
+import com.chin.ygodb.TaskScheduler.Callback;
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
 import com.chin.ygodb.asyncTask.AddCardInfoTask;
 import com.chin.ygodb2.R;
-import com.chin.common.MyTagHandler;
 
 import android.os.AsyncTask;
 import android.os.Bundle;
@@ -23,7 +27,7 @@ import android.support.v4.app.Fragment;
 import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentPagerAdapter;
 import android.support.v4.view.ViewPager;
-import android.text.Html;
+import android.text.Spanned;
 
 /**
  * Activity to show all details about a card
@@ -90,7 +94,9 @@ public class CardDetailActivity extends BaseFragmentActivity {
         public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
             // Inflate the layout for this fragment
             View view = inflater.inflate(R.layout.fragment_card_info, container, false);
-            myTask = new AddCardInfoTask((CardDetailActivity) getActivity()).execute(cardName);
+            // on the disk pool: the task only reads the offline database, the download is handed to the network pool
+            myTask = new AddCardInfoTask((CardDetailActivity) getActivity())
+                            .executeOnExecutor(TaskScheduler.getExecutor(Pool.DISK, Priority.VISIBLE), cardName);
             return view;
         }
 
@@ -137,7 +143,10 @@ public class CardDetailActivity extends BaseFragmentActivity {
             LinearLayout layout = (LinearLayout) view.findViewById(R.id.fragment_layout);
             layout.setGravity(Gravity.RIGHT);
 
-            myTask = (PopulateRulingAsyncTask) new PopulateRulingAsyncTask(layout, (CardDetailActivity) getActivity(), type, cardName).execute();
+            // the pager also creates the tabs next to the one shown, these can wait
+            Priority priority = getUserVisibleHint()? Priority.VISIBLE : Priority.BACKGROUND;
+            myTask = (PopulateRulingAsyncTask) new PopulateRulingAsyncTask(layout, (CardDetailActivity) getActivity(), type, cardName, priority)
+                            .executeOnExecutor(TaskScheduler.getExecutor(Pool.DISK, priority));
 
             return view;
         }
@@ -152,54 +161,107 @@ public class CardDetailActivity extends BaseFragmentActivity {
         }
     }
 
-    public static class PopulateRulingAsyncTask extends AsyncTask<String, Void, String> {
+    /**
+     * Show the offline info first, then the online one once it is fetched if it is different. The offline info is
+     * read on the disk pool, the online one is fetched on the network pool without holding the thread of this task.
+     * The html is rendered in the background, the UI thread only sets the text.
+     */
+    public static class PopulateRulingAsyncTask extends AsyncTask<String, Spanned, Void> {
         LinearLayout layout;
         CardDetailActivity activity;
         CardAdditionalInfoType type;
         String cardName;
-        boolean exceptionOccurred = false;
+        Priority priority;
+
+        // the html last published, set in the background before the task ends
+        String publishedInfo = null;
+
+        // the view showing the info
+        TextView infoView = null;
 
-        public PopulateRulingAsyncTask(LinearLayout layout, CardDetailActivity activity, CardAdditionalInfoType type, String cardName) {
+        public PopulateRulingAsyncTask(LinearLayout layout, CardDetailActivity activity, CardAdditionalInfoType type, String cardName,
+                                       Priority priority) {
             this.layout = layout;
             this.activity = activity;
             this.type = type;
             this.cardName = cardName;
+            this.priority = priority;
         }
 
         @Override
-        protected String doInBackground(String... params) {
+        protected Void doInBackground(String... params) {
+            CardStore cardStore = CardStore.getInstance(activity);
             try {
-                String info = CardStore.getInstance(activity).getCardGenericInfo(type, cardName);
-                return info;
+                String offlineInfo = cardStore.getCardGenericInfoOffline(type, cardName);
+                Spanned rendered = SpannedCache.render(offlineInfo, priority);
+                publishedInfo = offlineInfo;
+                publishProgress(rendered);
             } catch (Exception e) {
                 e.printStackTrace();
-
-                // set the flag so we can do something about this in onPostExecute()
-                exceptionOccurred = true;
             }
+
             return null;
         }
 
         @Override
-        protected void onPostExecute(String param) {
+        protected void onProgressUpdate(Spanned... infos) {
+            showInfo(infos[0]);
+        }
 
-            if (exceptionOccurred) {
-                // remove the spinner
-                ProgressBar pgrBar = (ProgressBar) activity.findViewById(R.id.progressBar_fragment_general);
-                layout.removeView(pgrBar);
-                TextView tv = new TextView(activity);
-                layout.addView(tv);
-                tv.setText("Not available");
+        @Override
+        protected void onPostExecute(Void result) {
+            CardStore cardStore = CardStore.getInstance(activity);
+            if (!cardStore.isOnline()) {
+                showOnlineInfo(null);
                 return;
             }
 
-            TextView tv = new TextView(activity);
-            layout.addView(tv);
-            tv.setText(Html.fromHtml(param, null, new MyTagHandler()));
+            // null if the page can't be fetched in time, then the offline info stays
+            cardStore.getCardGenericInfo(type, cardName, priority, new Callback<String>() {
+                @Override
+                public void onResult(String onlineInfo) {
+                    if (!isCancelled()) {
+                        showOnlineInfo(onlineInfo);
+                    }
+                }
+            });
+        }
 
-            // remove the spinner
-            ProgressBar pgrBar = (ProgressBar) activity.findViewById(R.id.progressBar_fragment_general);
-            layout.removeView(pgrBar);
+        /**
+         * @param onlineInfo The online info, or null if there is none
+         */
+        private void showOnlineInfo(String onlineInfo) {
+            String info;
+            if (onlineInfo != null && !onlineInfo.equals(publishedInfo)) {
+                info = onlineInfo;
+            }
+            else if (publishedInfo == null) {
+                info = "Not available."; // neither offline nor online
+            }
+            else {
+                return;
+            }
+
+            SpannedCache.render(info, priority, new Callback<Spanned>() {
+                @Override
+                public void onResult(Spanned rendered) {
+                    if (rendered != null && !isCancelled()) {
+                        showInfo(rendered);
+                    }
+                }
+            });
+        }
+
+        private void showInfo(Spanned info) {
+            if (infoView == null) {
+                infoView = new TextView(activity);
+                layout.addView(infoView);
+
+                // remove the spinner
+                ProgressBar pgrBar = (ProgressBar) activity.findViewById(R.id.progressBar_fragment_general);
+                layout.removeView(pgrBar);
+            }
+            infoView.setText(info);
         }
     }
 
@@ -1,10 +1,19 @@
 package com.chin.ygodb.activity;
 
+import java.util.List;
+
 import com.chin.ygodb.activity.BaseFragmentActivity;
+import com.chin.ygodb.CardPrefetcher;
+import com.chin.ygodb.CardSearchAdapter;
+import com.chin.ygodb.CardStatSearcher;
 import com.chin.ygodb.CardStore;
+import com.chin.ygodb.CardStore.CardListListener;
+import com.chin.ygodb.CardTextSearcher;
+import com.chin.ygodb.TaskScheduler;
+import com.chin.ygodb.TaskScheduler.Pool;
+import com.chin.ygodb.TaskScheduler.Priority;
 import com.chin.ygodb2.R;
 import com.chin.common.CustomDialogFragment;
-import com.chin.common.RegexFilterArrayAdapter;
 
 import android.content.Context;
 import android.content.Intent;
@@ -31,58 +40,102 @@ public class MainActivity extends BaseFragmentActivity {
     public final static String CARD_LINK = "com.chin.ygodb.LINK";
     public final static String CARD_NAME = "com.chin.ygodb.NAME";
 
-    public static RegexFilterArrayAdapter<String> adapter = null;
+    public static CardSearchAdapter adapter = null;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        // get the card list and their wiki url
-        if (CardStore.cardList == null) {
+        // get the card list and their wiki url. The offline list shows up first, then the online one is merged in
+        // in the background, so we never wait on the network here
+        if (adapter == null) {
+            adapter = new CardSearchAdapter(this, android.R.layout.simple_list_item_1);
+            new CardListLoaderTask(this).executeOnExecutor(TaskScheduler.getExecutor(Pool.NETWORK, Priority.VISIBLE));
+        }
+
+        if (savedInstanceState == null) {
+            SearchCardFragment newFragment = new SearchCardFragment();
+            FragmentTransaction ft = getSupportFragmentManager().beginTransaction();
+            ft.add(R.id.tab_viewgroup, newFragment).commit();
+        }
+    }
+
+    /**
+     * Load the card list in the background and add the cards to the adapter as they come in
+     */
+    static class CardListLoaderTask extends AsyncTask<Void, List<String>, Void> implements CardListListener {
+        MainActivity activity;
+        boolean exceptionOccurred = false;
+
+        public CardListLoaderTask(MainActivity activity) {
+            this.activity = activity;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params) {
             try {
-                new AsyncTask<Context, Void, Void>() {
+                CardStore cardStore = CardStore.getInstance(activity);
+                cardStore.initializeCardList(this);
+                cardStore.refreshCardList(this);
+
+                // get the full-text index and the stat table ready, on the disk pool after anything the user waits for
+                final Context context = activity.getApplicationContext();
+                TaskScheduler.getExecutor(Pool.DISK, Priority.PREFETCH).execute(new Runnable() {
                     @Override
-                    protected Void doInBackground(Context... params) {
+                    public void run() {
                         try {
-                            CardStore.getInstance(params[0]).initializeCardList();
-                        }
-                        catch (Exception e) {
+                            new CardTextSearcher(context).prepareIndex();
+                            new CardStatSearcher(context).prepareTable();
+                        } catch (Exception e) {
                             e.printStackTrace();
                         }
-                        return null;
                     }
-                }.execute(this).get();
-            } catch (Exception e) {
+                });
+            }
+            catch (Exception e) {
                 e.printStackTrace();
+
+                // set the flag so we can do something about this in onPostExecute()
+                exceptionOccurred = true;
+            }
+            return null;
+        }
+
+        @Override
+        public void onCardsAdded(List<String> newCards) {
+            publishProgress(newCards);
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        protected void onProgressUpdate(List<String>... newCards) {
+            adapter.addCards(newCards[0]);
+        }
+
+        @Override
+        protected void onPostExecute(Void param) {
+            // if the offline list is there we can live without the online one
+            if (exceptionOccurred && adapter.getCardCount() == 0 && !activity.isFinishing()) {
                 CustomDialogFragment newFragment = new CustomDialogFragment(
                         "Something went horribly wrong. Please send me an email at chinho.dev@gmail.com if this persists.");
                 newFragment.setCancelable(false);
-                newFragment.show(getFragmentManager(), "no net");
-                return;
+                newFragment.show(activity.getFragmentManager(), "no net");
             }
         }
-
-        if (savedInstanceState == null) {
-            SearchCardFragment newFragment = new SearchCardFragment();
-            FragmentTransaction ft = getSupportFragmentManager().beginTransaction();
-            ft.add(R.id.tab_viewgroup, newFragment).commit();
-        }
     }
 
     /**
      * Fragment for the search card view
      */
     public static class SearchCardFragment extends Fragment {
+        CardPrefetcher prefetcher;
+
         @Override
         public View onCreateView(LayoutInflater inflater, ViewGroup container, Bundle savedInstanceState) {
             // Inflate the layout for this fragment
             View view = inflater.inflate(R.layout.fragment_search_card, container, false);
 
             try {
-                if (adapter == null) {
-                    adapter = new RegexFilterArrayAdapter<String>(getActivity(), android.R.layout.simple_list_item_1, CardStore.cardList);
-                }
-
                 EditText cardEditText = (EditText) view.findViewById(R.id.cardEditText);
 
                 cardEditText.addTextChangedListener(new TextWatcher() {
@@ -95,12 +148,16 @@ public class MainActivity extends BaseFragmentActivity {
                     public void beforeTextChanged(CharSequence s, int start, int count, int after) {}
                     @Override
                     public void afterTextChanged(Editable s) {
-                        adapter.getFilter().filter(s);
+                        adapter.search(s.toString());
                     }
                 });
 
                 ListView cardListView = (ListView) view.findViewById(R.id.cardListView);
                 cardListView.setAdapter(adapter);
+
+                // warm up the detail page of the first few cards when there are only a few of them
+                prefetcher = new CardPrefetcher(getActivity(), adapter);
+                cardListView.setOnScrollListener(prefetcher);
                 cardListView.setOnItemClickListener(new OnItemClickListener(){
                     @Override
                     public void onItemClick(AdapterView<?> arg0, View v, int position, long arg3) {
@@ -118,5 +175,14 @@ public class MainActivity extends BaseFragmentActivity {
 
             return view;
         }
+
+        @Override
+        public void onDestroyView() {
+            super.onDestroyView();
+            if (prefetcher != null) {
+                prefetcher.detach();
+                prefetcher = null;
+            }
+        }
     }
 }
@@ -1,19 +1,28 @@
 package com.chin.ygodb.asyncTask;
 
-import java.util.ArrayList;
+import java.util.List;
+
+import com.chin.ygodb.CardRecord;
+import com.chin.ygodb.CardSetIndex;
+import com.chin.ygodb.CardSetIndex.Printing;
 import com.chin.ygodb.CardStore;
 import com.chin.ygodb.CardStore.Pair;
-import com.chin.common.MyTagHandler;
+import com.chin.ygodb.SpannedCache;
+import com.chin.ygodb.TaskScheduler.Callback;
+import com.chin.ygodb.TaskScheduler.Priority;
 import com.chin.common.Util;
 import com.chin.ygodb2.R;
 import com.chin.ygodb.activity.CardDetailActivity;
 import com.nostra13.universalimageloader.core.ImageLoader;
 
+import android.content.Context;
 import android.graphics.Point;
 import android.os.AsyncTask;
-import android.text.Html;
+import android.text.Spanned;
 import android.view.Display;
 import android.view.Gravity;
+import android.view.View;
+import android.view.WindowManager;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
@@ -23,13 +32,43 @@ import android.widget.TextView;
 /**
  * The async task that populate the information in CardDetailActivity
  * It is put into a separate file since it is too long
+ *
+ * The card is first shown from the offline database, which only takes a local query, so this task runs on the disk
+ * pool. When online, the wiki page is then fetched on the network pool, without holding the thread of this task, and
+ * each part of the card (lore, info, status) that differs online is shown again once the record is handed back.
+ * A part that is missing online, e.g. from a page that was only partly parsed, keeps showing the offline one, so the
+ * online record never shows less than the offline one. The lore is rendered on the parse pool before it is shown.
  */
-public class AddCardInfoTask extends AsyncTask<String, Void, Void> {
+public class AddCardInfoTask extends AsyncTask<String, AddCardInfoTask.RenderedRecord, Void> {
+    // height / width of a card
+    public static final double IMAGE_RATIO = 1.4576; // 8.6 / 5.9
 
     CardDetailActivity activity;
     String cardName;
     CardStore cardStore;
 
+    // what is currently shown of each part, or null if nothing is shown yet
+    String shownLore;
+    List<Pair> shownInfos;
+    List<Pair> shownStatuses;
+
+    /**
+     * A record with its lore rendered, or a null lore if it couldn't be
+     */
+    static class RenderedRecord {
+        final CardRecord record;
+        final Spanned lore;
+
+        RenderedRecord(CardRecord record, Spanned lore) {
+            this.record = record;
+            this.lore = lore;
+        }
+    }
+
+    // the sets the card was printed in, from the local index
+    List<Printing> printings;
+    boolean printingsShown = false;
+
     public AddCardInfoTask(CardDetailActivity activity) {
         this.activity = activity;
         this.cardStore = CardStore.getInstance(activity);
@@ -39,78 +78,183 @@ public class AddCardInfoTask extends AsyncTask<String, Void, Void> {
     protected Void doInBackground(String... params) {
         cardName = params[0];
 
-        try { cardStore.getCardDomReady(cardName);     } catch (Exception e) {e.printStackTrace();}
-        if (isCancelled()) {return null; }; // attempt to return early
+        try { printings = new CardSetIndex(activity).getPrintings(cardName); } catch (Exception e) {e.printStackTrace();}
+
+        CardRecord offlineRecord = null;
+        try { offlineRecord = cardStore.getCardRecordOffline(cardName); } catch (Exception e) {e.printStackTrace();}
+        if (offlineRecord != null) {
+            publishProgress(render(offlineRecord));
+        }
+
         return null;
     }
 
+    /**
+     * Render the lore of the offline record here rather than on the UI thread
+     */
+    private static RenderedRecord render(CardRecord record) {
+        Spanned lore = null;
+        if (record.lore != null) {
+            try { lore = SpannedCache.render(record.lore, Priority.VISIBLE); } catch (Exception e) {e.printStackTrace();}
+        }
+        return new RenderedRecord(record, lore);
+    }
+
+    @Override
+    protected void onProgressUpdate(RenderedRecord... records) {
+        showRecord(records[0]);
+    }
+
     @Override
-    protected void onPostExecute(Void params) {
-        // all of these should be fast
-        try { addCardImage();               } catch (Exception e) {e.printStackTrace();}
-        try { addCardLore();                } catch (Exception e) {e.printStackTrace();}
-        try { addCardInfo();                } catch (Exception e) {e.printStackTrace();}
-        try { addCardStatus();              } catch (Exception e) {e.printStackTrace();}
+    protected void onPostExecute(Void result) {
+        if (!cardStore.isOnline()) {
+            showOnlineRecord(null);
+            return;
+        }
+
+        // null if the page can't be fetched in time, then the offline record stays
+        cardStore.getCardRecord(cardName, Priority.VISIBLE, new Callback<CardRecord>() {
+            @Override
+            public void onResult(final CardRecord record) {
+                if (isCancelled()) {
+                    return;
+                }
+                if (record == null || record.lore == null) {
+                    showOnlineRecord(record == null? null : new RenderedRecord(record, null));
+                    return;
+                }
+                SpannedCache.render(record.lore, Priority.VISIBLE, new Callback<Spanned>() {
+                    @Override
+                    public void onResult(Spanned lore) {
+                        if (!isCancelled()) {
+                            showOnlineRecord(new RenderedRecord(record, lore));
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * @param onlineRecord The online record, or null if we are offline or the page couldn't be fetched
+     */
+    private void showOnlineRecord(RenderedRecord onlineRecord) {
+        try { addCardImage(onlineRecord == null? null : onlineRecord.record); } catch (Exception e) {e.printStackTrace();}
+
+        if (onlineRecord != null) {
+            showRecord(onlineRecord);
+        }
+        removeSpinner(R.id.fragmentCardInfo_progressBar2); // in case there was nothing to show at all
     }
 
-    public void addCardImage() throws Exception {
-        // remove the spinner
-        ProgressBar pgrBar = (ProgressBar) activity.findViewById(R.id.fragmentCardInfo_progressBar1);
-        LinearLayout layout = (LinearLayout) activity.findViewById(R.id.fragmentCardInfo_mainLinearLayout);
-        layout.removeView(pgrBar);
+    /**
+     * Show everything but the image from a record, part by part. A part is only shown if the record has it and it is
+     * not what is shown already, so a part missing from the record keeps what is shown. All of these should be fast.
+     */
+    private void showRecord(RenderedRecord rendered) {
+        CardRecord record = rendered.record;
+        if (rendered.lore != null && !record.lore.equals(shownLore)) {
+            shownLore = record.lore;
+            try { addCardLore(rendered.lore);   } catch (Exception e) {e.printStackTrace();}
+        }
+        if (!record.infos.isEmpty() && !record.infos.equals(shownInfos)) {
+            shownInfos = record.infos;
+            try { addCardInfo(record);          } catch (Exception e) {e.printStackTrace();}
+        }
+        if (!record.statuses.isEmpty() && !record.statuses.equals(shownStatuses)) {
+            shownStatuses = record.statuses;
+            try { addCardStatus(record);        } catch (Exception e) {e.printStackTrace();}
+        }
+        if (!printingsShown) {
+            printingsShown = true;
+            try { addPrintHistory();        } catch (Exception e) {e.printStackTrace();}
+        }
+    }
+
+    private void removeSpinner(int id) {
+        ProgressBar pgrBar = (ProgressBar) activity.findViewById(id);
+        if (pgrBar != null) {
+            LinearLayout layout = (LinearLayout) activity.findViewById(R.id.fragmentCardInfo_mainLinearLayout);
+            layout.removeView(pgrBar);
+        }
+    }
+
+    /**
+     * @param record The online record, or null if we are offline or the page couldn't be fetched
+     */
+    public void addCardImage(CardRecord record) throws Exception {
+        removeSpinner(R.id.fragmentCardInfo_progressBar1);
 
         ImageView imgView = (ImageView) activity.findViewById(R.id.imageView_detail_card);
-        if (!Util.hasNetworkConnectivity(activity)) {
+        if (record == null || record.imageLink == null) {
             TextView tv = new TextView(activity);
             tv.setGravity(Gravity.CENTER);
-            tv.setText("(image unavailable in offline mode)");
+            tv.setText(cardStore.isOnline()? "(image unavailable)" : "(image unavailable in offline mode)");
             Util.replaceView(imgView, tv);
             return;
         }
 
         // calculate the width of the images to be displayed
-        Display display = activity.getWindowManager().getDefaultDisplay();
-        Point size = new Point();
-        display.getSize(size);
-        int screenWidth = size.x;
-        int scaleWidth = (int) (screenWidth * 0.8);
+        int scaleWidth = getImageWidth(activity);
 
         // apply the width and height to the ImageView
         imgView.getLayoutParams().width = scaleWidth;
-        imgView.getLayoutParams().height = (int) (scaleWidth * 1.4576); // 8.6 / 5.9
+        imgView.getLayoutParams().height = (int) (scaleWidth * IMAGE_RATIO);
         imgView.requestLayout();
 
         // set the image
-        String originalLink = cardStore.getImageLink(cardName);
-        ImageLoader.getInstance().displayImage(Util.getScaledWikiaImageLink(originalLink, scaleWidth), imgView);
+        ImageLoader.getInstance().displayImage(Util.getScaledWikiaImageLink(record.imageLink, scaleWidth), imgView);
     }
 
-    public void addCardInfo() throws Exception {
-        // remove the spinner
-        ProgressBar pgrBar = (ProgressBar) activity.findViewById(R.id.fragmentCardInfo_progressBar2);
-        LinearLayout layout = (LinearLayout) activity.findViewById(R.id.fragmentCardInfo_mainLinearLayout);
-        layout.removeView(pgrBar);
+    /**
+     * @return The width of the card image in the detail page, which is also the width it is scaled to on the wiki
+     */
+    public static int getImageWidth(Context context) {
+        Display display = ((WindowManager) context.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+        Point size = new Point();
+        display.getSize(size);
+        int screenWidth = size.x;
+        return (int) (screenWidth * 0.8);
+    }
+
+    public void addCardInfo(CardRecord record) throws Exception {
+        removeSpinner(R.id.fragmentCardInfo_progressBar2);
 
         TableLayout infoTable = (TableLayout) activity.findViewById(R.id.infoTable);
-        ArrayList<Pair> infos = cardStore.getCardInfo(cardName);
-        for (Pair pair : infos) {
+        infoTable.removeAllViews(); // in case we are showing the card again
+        for (Pair pair : record.infos) {
             Util.addRowWithTwoTextView(activity, infoTable, pair.key + "  ", pair.value, true);
         }
 
         Util.addBlankRow(activity, infoTable);
     }
 
-    public void addCardLore() throws Exception {
+    public void addCardLore(Spanned lore) throws Exception {
         TextView effectTv = (TextView) activity.findViewById(R.id.textViewCardEffect);
-        effectTv.setText(Html.fromHtml(cardStore.getCardLore(cardName), null, new MyTagHandler()));
+        effectTv.setText(lore);
     }
 
-    public void addCardStatus() throws Exception {
-        TableLayout statusTable = (TableLayout) activity.findViewById(R.id.banlistTable);
+    public void addPrintHistory() throws Exception {
+        if (printings == null || printings.isEmpty()) {
+            return; // the sets are indexed when the boosters are browsed, there may be nothing yet
+        }
 
-        ArrayList<Pair> statuses = cardStore.getCardStatus(cardName);
-        for (Pair pair : statuses) {
+        activity.findViewById(R.id.printHistoryHeader).setVisibility(View.VISIBLE);
+        TableLayout printTable = (TableLayout) activity.findViewById(R.id.printHistoryTable);
+        for (Printing printing : printings) {
+            String details = printing.number;
+            if (printing.rarity.length() > 0) {
+                details += (details.length() > 0? " " : "") + "(" + printing.rarity + ")";
+            }
+            Util.addRowWithTwoTextView(activity, printTable, printing.setName + "  ", details, true);
+        }
+    }
+
+    public void addCardStatus(CardRecord record) throws Exception {
+        TableLayout statusTable = (TableLayout) activity.findViewById(R.id.banlistTable);
+        statusTable.removeAllViews();
+        for (Pair pair : record.statuses) {
             Util.addRowWithTwoTextView(activity, statusTable, pair.key + "  ", pair.value, true);
         }
     }
-}
\ No newline at end of file
+}